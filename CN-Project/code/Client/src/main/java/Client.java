@@ -3,10 +3,13 @@ import com.google.protobuf.ByteString;
 import com.google.protobuf.Timestamp;
 import grpcserver.*;
 import io.grpc.*;
+import io.grpc.stub.MetadataUtils;
 import io.grpc.stub.StreamObserver;
 import models.Instances;
 import streamobservers.StreamObserverDownload;
 import streamobservers.StreamObserverUpload;
+import tracing.Span;
+import tracing.Tracer;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,6 +38,8 @@ public class Client {
     private static final String DEFAULT_SERVER_INSTANCE_GROUP_ZONE = "europe-west1-b";
     private static ServerGrpc.ServerBlockingStub blockingStub;
     private static ServerGrpc.ServerStub noBlockStub;
+    private static final Metadata.Key<String> TRACE_PARENT_HEADER =
+            Metadata.Key.of(Tracer.TRACE_PARENT, Metadata.ASCII_STRING_MARSHALLER);
 
     static int menu() {
         Scanner scanner = new Scanner(System.in);
@@ -49,11 +54,12 @@ public class Client {
             System.out.println(" 3: Get files names between two dates, with a specific object and score");
             System.out.println(" 4: Get all the files");
             System.out.println(" 5: Delete a file");
+            System.out.println(" 6: Get the files between two dates with the highest scores for a specific object");
             System.out.println("99: Exit");
             System.out.print("Enter an option: \n");
             option = scanner.nextInt();
             System.out.println();
-        } while (!((option >= 0 && option <= 5) || option == 99));
+        } while (!((option >= 0 && option <= 6) || option == 99));
         return option;
     }
 
@@ -67,15 +73,25 @@ public class Client {
         return input.nextLine();
     }
 
-    private static void uploadImage(String imagePath) {
+    /**
+     * @param bulk - if the image is part of a bulk upload, e.g. a backfill, processed after the interactive uploads
+     */
+    private static void uploadImage(String imagePath, boolean bulk) {
         Path path = Paths.get(imagePath);
         String fileNameWithType = path.getFileName().toString();
         int extensionIdx = fileNameWithType.lastIndexOf('.');
         String fileName = fileNameWithType.substring(0, extensionIdx);
         String fileType = fileNameWithType.substring((extensionIdx) + 1);
 
-        StreamObserverUpload replyStream = new StreamObserverUpload();
-        StreamObserver<ImageUploadDownload> reqStream = noBlockStub.uploadImage(replyStream);
+        // The upload is the root of the trace followed by the server and the detection of the objects
+        Span uploadSpan = Tracer.startSpan("upload", null).setAttribute("image", fileNameWithType);
+        Metadata headers = new Metadata();
+        headers.put(TRACE_PARENT_HEADER, uploadSpan.getTraceParent());
+
+        StreamObserverUpload replyStream = new StreamObserverUpload(uploadSpan);
+        StreamObserver<ImageUploadDownload> reqStream = noBlockStub
+                .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers))
+                .uploadImage(replyStream);
 
         // Build and upload image metadata
         ImageMetadata metadata;
@@ -84,6 +100,7 @@ public class Client {
                     .setName(fileName)
                     .setType(fileType)
                     .setSize(Files.size(path))
+                    .setPriority(bulk ? Priority.BULK : Priority.INTERACTIVE)
                     .build();
         } catch (IOException e) {
             System.out.println("* ERROR * " + e.getMessage());
@@ -155,7 +172,7 @@ public class Client {
             java.sql.Timestamp tm2 = java.sql.Timestamp.valueOf(lastTime);
 
             Timestamp initialTimestamp = localDateTimeToProtoTimestamp(tm.getTime() / 1000, tm.getNanos());
-            Timestamp lastTimestamp = localDateTimeToProtoTimestamp(tm2.getTime() / 1000, tm.getNanos());
+            Timestamp lastTimestamp = localDateTimeToProtoTimestamp(tm2.getTime() / 1000, tm2.getNanos());
             double score = Double.parseDouble(strScore);
 
             SearchProperties props = SearchProperties.newBuilder()
@@ -188,6 +205,58 @@ public class Client {
         }
     }
 
+    private static void searchTopFiles(String initialDateStr, String lastDateStr, String objectName, String strScore, String strLimit) {
+        try {
+            if (objectName.length() == 0) {
+                System.out.println("\n* ERROR * Please insert a valid object name.");
+                return;
+            }
+
+            DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+            LocalDateTime initialTime = LocalDate.parse(initialDateStr, dateFormatter).atTime(0, 0, 0, 0);
+            LocalDateTime lastTime = LocalDate.parse(lastDateStr, dateFormatter).atTime(23, 59, 59, 999);
+
+            java.sql.Timestamp tm = java.sql.Timestamp.valueOf(initialTime);
+            java.sql.Timestamp tm2 = java.sql.Timestamp.valueOf(lastTime);
+
+            Timestamp initialTimestamp = localDateTimeToProtoTimestamp(tm.getTime() / 1000, tm.getNanos());
+            Timestamp lastTimestamp = localDateTimeToProtoTimestamp(tm2.getTime() / 1000, tm2.getNanos());
+            double score = Double.parseDouble(strScore);
+            int limit = Integer.parseInt(strLimit);
+
+            SearchProperties props = SearchProperties.newBuilder()
+                    .setInitialTimestamp(initialTimestamp)
+                    .setLastTimestamp(lastTimestamp)
+                    .setObjectName(objectName)
+                    .setScore(score)
+                    .setLimit(limit)
+                    .build();
+            FilesResponse response = blockingStub.searchTopFiles(props);
+
+            List<ImageResponse> filesList = response.getResponsesList();
+            if (filesList.isEmpty()) {
+                System.out.println("- No file was found with the inserted characteristics.");
+                return;
+            }
+
+            System.out.format("<****| Top %d files between %s and %s with the object '%s' with a score of at least %s |****>\n",
+                    filesList.size(), initialDateStr, lastDateStr, objectName, strScore);
+            filesList.forEach(image -> System.out.format("\t- Score: %.2f, Id: %s, Image name: %s, Objects found: %d\n",
+                    image.getScore(), image.getId(), image.getName(), image.getObjectsFound()));
+        } catch (DateTimeParseException | NullPointerException | NumberFormatException e) {
+            String inputError;
+            if (e instanceof DateTimeParseException) {
+                inputError = "dates";
+            } else {
+                inputError = "score and limit";
+            }
+            System.out.format("Error parsing %s, please verify if you're inserting the %s in the right format.",
+                    inputError, inputError);
+        } catch (StatusRuntimeException e) {
+            System.out.println("* ERROR * " + e.getMessage());
+        }
+    }
+
     private static void getAllFiles(Scanner scanner) {
         int offset = 0;
 
@@ -322,7 +391,9 @@ public class Client {
                 int option = menu();
                 switch (option) {
                     case 0:
-                        uploadImage(readInput("Absolute path of the image to upload?", scanner));
+                        String imagePath = readInput("Absolute path of the image to upload?", scanner);
+                        String bulk = processInput(readInput("Bulk upload, e.g. a backfill? [y/N]", scanner), "n");
+                        uploadImage(imagePath, bulk.equalsIgnoreCase("y"));
                         break;
                     case 1:
                         getImageDetectedObjects(readInput("Request id?", scanner));
@@ -345,6 +416,14 @@ public class Client {
                     case 5:
                         deleteFile(readInput("Request id?", scanner));
                         break;
+                    case 6:
+                        String topInitialDate = readInput("Initial date? [dd/mm/yyyy]", scanner);
+                        String topLastDate = readInput("Last date? [dd/mm/yyyy]", scanner);
+                        String topObjectName = readInput("Object name?", scanner);
+                        String topScore = readInput("Score above of? (1 <= t >= 0, e.g. 0.69)", scanner);
+                        String limit = readInput("Maximum number of files?", scanner);
+                        searchTopFiles(topInitialDate, topLastDate, topObjectName, topScore, limit);
+                        break;
                     case 99:
                         System.exit(0);
                 }
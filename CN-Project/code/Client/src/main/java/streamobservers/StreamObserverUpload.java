@@ -2,9 +2,16 @@ package streamobservers;
 
 import grpcserver.ImageResponse;
 import io.grpc.stub.StreamObserver;
+import tracing.Span;
 
 public class StreamObserverUpload implements StreamObserver<ImageResponse> {
+    private final Span uploadSpan;
     private ImageResponse imageResponse;
+
+    public StreamObserverUpload(Span uploadSpan) {
+        this.uploadSpan = uploadSpan;
+    }
+
     @Override
     public void onNext(ImageResponse imageResponse) {
         this.imageResponse = imageResponse;
@@ -13,11 +20,13 @@ public class StreamObserverUpload implements StreamObserver<ImageResponse> {
     @Override
     public void onError(Throwable throwable) {
         System.out.println("* Error * " + throwable.getMessage());
+        uploadSpan.setAttribute("error", throwable.getMessage()).end();
     }
 
     @Override
     public void onCompleted() {
         System.out.println("\t- Image '" + imageResponse.getName() +
                 "' was uploaded with the id '" + imageResponse.getId() + "'.");
+        uploadSpan.setAttribute("requestId", imageResponse.getId()).end();
     }
 }
@@ -0,0 +1,55 @@
+package tracing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timed operation of a trace, identified like in the W3C trace context (https://www.w3.org/TR/trace-context/), so it
+ * can be continued by the other applications through the 'traceparent' gRPC header or Pub/Sub message attribute.
+ */
+public class Span {
+    private final String traceId;
+    private final String spanId;
+    private final String parentId;
+    private final String name;
+    private final long startEpochMicros;
+    private final long startNanos;
+    private final Map<String, String> attributes = new LinkedHashMap<>();
+    private boolean ended;
+
+    Span(String traceId, String spanId, String parentId, String name, long startEpochMicros) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentId = parentId;
+        this.name = name;
+        this.startEpochMicros = startEpochMicros;
+        this.startNanos = System.nanoTime();
+    }
+
+    public Span startChild(String name) {
+        return Tracer.startSpan(name, getTraceParent());
+    }
+
+    public synchronized Span setAttribute(String key, Object value) {
+        attributes.put(key, String.valueOf(value));
+        return this;
+    }
+
+    /**
+     * @return the value of the 'traceparent' header that makes this span the parent of the spans created from it
+     */
+    public String getTraceParent() {
+        return "00-" + traceId + '-' + spanId + "-01";
+    }
+
+    public void end() {
+        Map<String, String> attributesCopy;
+        synchronized (this) {
+            if (ended) return;
+            ended = true;
+            attributesCopy = new LinkedHashMap<>(attributes);
+        }
+        long durationMicros = (System.nanoTime() - startNanos) / 1000;
+        Tracer.export(traceId, spanId, parentId, name, startEpochMicros, durationMicros, attributesCopy);
+    }
+}
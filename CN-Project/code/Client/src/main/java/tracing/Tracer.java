@@ -0,0 +1,111 @@
+package tracing;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Creates the spans of this application and, if the environment variable TRACE_FILE is defined, appends every ended
+ * span to that file as a line in the Zipkin v2 JSON format, to be analysed offline.
+ * The trace context is propagated in the 'traceparent' gRPC metadata header and Pub/Sub message attribute.
+ */
+public class Tracer {
+    public static final String TRACE_PARENT = "traceparent";
+    private static final String SERVICE_NAME = "client";
+    private static final String TRACE_FILE_ENV = "TRACE_FILE";
+    private static final BufferedWriter writer = openTraceFile();
+
+    private static BufferedWriter openTraceFile() {
+        String traceFile = System.getenv(TRACE_FILE_ENV);
+        if (traceFile == null) return null;
+        try {
+            return Files.newBufferedWriter(Paths.get(traceFile), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.out.println("* ERROR * Error opening the trace file '" + traceFile + "': " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Starts a span that continues the trace of the 'traceparent' provided, or a new trace if it's null or invalid.
+     */
+    public static Span startSpan(String name, String traceParent) {
+        String[] parent = parseTraceParent(traceParent);
+        long startEpochMicros = System.currentTimeMillis() * 1000;
+        if (parent == null) return new Span(randomHex(16), randomHex(8), null, name, startEpochMicros);
+        return new Span(parent[1], randomHex(8), parent[2], name, startEpochMicros);
+    }
+
+    /**
+     * Records a span whose start and end were measured elsewhere, e.g. the time a message waited in a queue.
+     */
+    public static void recordSpan(String name, String traceParent, long startEpochMillis, long endEpochMillis) {
+        String[] parent = parseTraceParent(traceParent);
+        String traceId = parent == null ? randomHex(16) : parent[1];
+        String parentId = parent == null ? null : parent[2];
+        long durationMicros = Math.max(0, endEpochMillis - startEpochMillis) * 1000;
+        export(traceId, randomHex(8), parentId, name, startEpochMillis * 1000, durationMicros, Collections.emptyMap());
+    }
+
+    private static String[] parseTraceParent(String traceParent) {
+        if (traceParent == null) return null;
+        String[] fields = traceParent.split("-"); // version-traceId-parentId-flags
+        if (fields.length != 4 || fields[1].length() != 32 || fields[2].length() != 16) return null;
+        return fields;
+    }
+
+    private static String randomHex(int bytes) {
+        StringBuilder hex = new StringBuilder(bytes * 2);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < bytes; i++) hex.append(String.format("%02x", random.nextInt(256)));
+        return hex.toString();
+    }
+
+    static void export(
+            String traceId,
+            String spanId,
+            String parentId,
+            String name,
+            long startEpochMicros,
+            long durationMicros,
+            Map<String, String> attributes
+    ) {
+        if (writer == null) return;
+        StringBuilder json = new StringBuilder(256)
+                .append("{\"traceId\":\"").append(traceId)
+                .append("\",\"id\":\"").append(spanId).append('"');
+        if (parentId != null) json.append(",\"parentId\":\"").append(parentId).append('"');
+        json.append(",\"name\":\"").append(escape(name))
+                .append("\",\"timestamp\":").append(startEpochMicros)
+                .append(",\"duration\":").append(durationMicros)
+                .append(",\"localEndpoint\":{\"serviceName\":\"").append(SERVICE_NAME).append("\"}")
+                .append(",\"tags\":{");
+        String separator = "";
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            json.append(separator).append('"').append(escape(attribute.getKey())).append("\":\"")
+                    .append(escape(attribute.getValue())).append('"');
+            separator = ",";
+        }
+        json.append("}}");
+        synchronized (writer) {
+            try {
+                writer.write(json.toString());
+                writer.newLine();
+                writer.flush();
+            } catch (IOException e) {
+                System.out.println("* ERROR * Error writing span '" + name + "': " + e.getMessage());
+            }
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
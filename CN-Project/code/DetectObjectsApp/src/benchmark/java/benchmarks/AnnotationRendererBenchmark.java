@@ -0,0 +1,112 @@
+package benchmarks;
+
+import com.google.cloud.vision.v1.BoundingPoly;
+import com.google.cloud.vision.v1.LocalizedObjectAnnotation;
+import com.google.cloud.vision.v1.NormalizedVertex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the annotation of a Full HD image, as decoded from a JPEG, with AnnotationRenderer and with the previous
+ * implementation, which created a graphics context, a font, a stroke and a color for each object.
+ * JMH doesn't support benchmarks in the default package, from which classes can't be imported, so the renderer is
+ * called through a method handle.
+ * <p>
+ * Usage, after mvn -Pbenchmark package, with the allocation rate given by the gc profiler:
+ * java -cp target/DetectObjectsApp-1.0-jar-with-dependencies.jar org.openjdk.jmh.Main AnnotationRendererBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnnotationRendererBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int objects;
+
+    private BufferedImage img;
+    private List<LocalizedObjectAnnotation> annotations;
+    private MethodHandle render;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        MethodType renderType = MethodType.methodType(void.class, BufferedImage.class, List.class);
+        render = MethodHandles.publicLookup().findStatic(Class.forName("AnnotationRenderer"), "render", renderType);
+        img = new BufferedImage(1920, 1080, BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(42);
+        annotations = new ArrayList<>(objects);
+        for (int i = 0; i < objects; i++) {
+            float x = random.nextFloat() * 0.8f;
+            float y = random.nextFloat() * 0.8f;
+            float width = 0.05f + random.nextFloat() * 0.15f;
+            float height = 0.05f + random.nextFloat() * 0.15f;
+            BoundingPoly boundingPoly = BoundingPoly.newBuilder()
+                    .addNormalizedVertices(NormalizedVertex.newBuilder().setX(x).setY(y))
+                    .addNormalizedVertices(NormalizedVertex.newBuilder().setX(x + width).setY(y))
+                    .addNormalizedVertices(NormalizedVertex.newBuilder().setX(x + width).setY(y + height))
+                    .addNormalizedVertices(NormalizedVertex.newBuilder().setX(x).setY(y + height))
+                    .build();
+            annotations.add(LocalizedObjectAnnotation.newBuilder()
+                    .setName("Object " + i)
+                    .setScore(random.nextFloat())
+                    .setBoundingPoly(boundingPoly)
+                    .build());
+        }
+    }
+
+    @Benchmark
+    public BufferedImage renderer() throws Throwable {
+        render.invokeExact(img, annotations);
+        return img;
+    }
+
+    @Benchmark
+    public BufferedImage perObjectGraphics() {
+        for (LocalizedObjectAnnotation obj : annotations) {
+            annotateWithObject(img, obj);
+        }
+        return img;
+    }
+
+    /**
+     * The previous implementation of Vision.annotateWithObject, kept here as the baseline.
+     */
+    private static void annotateWithObject(BufferedImage img, LocalizedObjectAnnotation obj) {
+        Graphics2D gfx = img.createGraphics();
+        gfx.setFont(new Font("Arial", Font.PLAIN, 18));
+        gfx.setStroke(new BasicStroke(3));
+        gfx.setColor(new Color(0x00ff00));
+        Polygon poly = new Polygon();
+        BoundingPoly imgPoly = obj.getBoundingPoly();
+
+        gfx.drawString(obj.getName(),
+                imgPoly.getNormalizedVertices(0).getX() * img.getWidth(),
+                imgPoly.getNormalizedVertices(0).getY() * img.getHeight() - 3);
+
+        for (NormalizedVertex vertex : obj.getBoundingPoly().getNormalizedVerticesList()) {
+            poly.addPoint((int) (img.getWidth() * vertex.getX()), (int) (img.getHeight() * vertex.getY()));
+        }
+        gfx.draw(poly);
+    }
+}
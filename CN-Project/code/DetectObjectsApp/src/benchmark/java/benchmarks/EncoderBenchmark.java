@@ -0,0 +1,93 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the time of the encoding of an annotated image with several settings of AnnotatedImageEncoder, and prints
+ * the size of the result of each one. The image is read from the file in the imageFile parameter, which should be a
+ * typical upload, or is a synthetic Full HD image.
+ * The encoder is in the default package, so it's created and called through a method handle.
+ * <p>
+ * Usage, after mvn -Pbenchmark package:
+ * java -cp target/DetectObjectsApp-1.0-jar-with-dependencies.jar org.openjdk.jmh.Main EncoderBenchmark [-p imageFile=...]
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncoderBenchmark {
+
+    // Quality, or 'default' for the default of the JPEG writer, and the options enabled
+    @Param({"default", "0.9", "0.75+huffman", "0.75+progressive", "0.6", "0.5+huffman"})
+    public String encoder;
+
+    @Param({""})
+    public String imageFile;
+
+    private BufferedImage img;
+    private Object imageEncoder;
+    private MethodHandle encode;
+
+    @Setup
+    public void setup() throws Throwable {
+        img = SyntheticImages.readOrCreate(imageFile);
+        String[] settings = encoder.split("\\+");
+        Float quality = settings[0].equals("default") ? null : Float.valueOf(settings[0]);
+        boolean progressive = encoder.contains("+progressive");
+        boolean optimizeHuffman = encoder.contains("+huffman");
+
+        Class<?> encoderClass = Class.forName("AnnotatedImageEncoder");
+        imageEncoder = encoderClass.getConstructor(Float.class, boolean.class, boolean.class)
+                .newInstance(quality, progressive, optimizeHuffman);
+        encode = MethodHandles.publicLookup()
+                .findVirtual(encoderClass, "encode",
+                        MethodType.methodType(void.class, BufferedImage.class, String.class, OutputStream.class))
+                .asType(MethodType.methodType(void.class, Object.class, BufferedImage.class, String.class,
+                        OutputStream.class));
+
+        CountingOutputStream out = new CountingOutputStream();
+        encode.invokeExact(imageEncoder, img, "jpeg", (OutputStream) out);
+        System.out.println("\nEncoding of a " + img.getWidth() + 'x' + img.getHeight() + " JPEG image with " +
+                imageEncoder + ": " + out.count + " bytes");
+    }
+
+    @Benchmark
+    public long encode() throws Throwable {
+        CountingOutputStream out = new CountingOutputStream();
+        encode.invokeExact(imageEncoder, img, "jpeg", (OutputStream) out);
+        return out.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package benchmarks;
+
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.protobuf.ByteString;
+import models.ImageContent;
+import models.PubSubMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tracing.Span;
+import tracing.Tracer;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the throughput of the processing of the images without the cloud services, to find the CPU bottlenecks:
+ * the objects are detected by the SyntheticObjectDetector, then each image is decoded, annotated and encoded in the
+ * render stage, with as many threads as cores, and the annotated image is written to a temporary file in the store
+ * stage, like in the DetectionPipeline. The same image, read from the file in the imageFile parameter or a synthetic
+ * Full HD JPEG image, is processed for every request, but the detected objects differ with the request id.
+ * The score is in images per second, and the mean time of each step is printed at the end.
+ * The classes of the application are in the default package, so they're created and called through method handles.
+ * <p>
+ * Usage, after mvn -Pbenchmark package, with the CPU usage given by the JMH profilers:
+ * java -cp target/DetectObjectsApp-1.0-jar-with-dependencies.jar org.openjdk.jmh.Main PipelineBenchmark
+ * [-p latencyMillis=...] [-p objects=...] [-p imageFile=...]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class PipelineBenchmark {
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int IMAGES = 256; // Per invocation
+    private static final List<String> STEPS = List.of("vision", "decode", "annotate", "encode", "gcs-write", "process");
+
+    @Param({"200"})
+    public long latencyMillis;
+
+    @Param({"5"})
+    public int objects;
+
+    @Param({""})
+    public String imageFile;
+
+    private final Map<String, LongAdder[]> stepTimes = new ConcurrentHashMap<>(); // {count, micros}
+    private final AtomicInteger ids = new AtomicInteger();
+    private ImageContent image;
+    private Object detector;
+    private MethodHandle detect;
+    private MethodHandle renderAnnotatedImage;
+    private Executor renderStage;
+    private Executor storeStage;
+    private Path outputDir;
+
+    @Setup
+    public void setup() throws Throwable {
+        image = readImage(imageFile);
+        Class<?> detectorClass = Class.forName("SyntheticObjectDetector");
+        detector = detectorClass.getConstructor(int.class, long.class).newInstance(objects, latencyMillis);
+        detect = MethodHandles.publicLookup()
+                .findVirtual(detectorClass, "detect",
+                        MethodType.methodType(CompletableFuture.class, PubSubMessage.class, ImageContent.class))
+                .asType(MethodType.methodType(CompletableFuture.class, Object.class, PubSubMessage.class,
+                        ImageContent.class));
+        renderAnnotatedImage = MethodHandles.publicLookup().findStatic(Class.forName("Vision"), "renderAnnotatedImage",
+                MethodType.methodType(void.class, ImageContent.class, List.class, OutputStream.class, Span.class));
+        Class<?> stageClass = Class.forName("PipelineStage");
+        renderStage = (Executor) stageClass.getConstructor(String.class, int.class, int.class)
+                .newInstance("render", CORES, QUEUE_CAPACITY);
+        storeStage = (Executor) stageClass.getConstructor(String.class, int.class, int.class)
+                .newInstance("store", 4 * CORES, QUEUE_CAPACITY);
+        outputDir = Files.createTempDirectory("pipeline-benchmark");
+
+        for (String step : STEPS) stepTimes.put(step, new LongAdder[]{new LongAdder(), new LongAdder()});
+        Tracer.addListener((name, durationMicros) -> {
+            LongAdder[] times = stepTimes.get(name);
+            if (times == null) return;
+            times[0].increment();
+            times[1].add(durationMicros);
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        StringBuilder report = new StringBuilder(String.format(
+                "%nImages of %d bytes with %d object(s), %d ms detection latency, %d cores, mean time of each step:",
+                image.getSize(), objects, latencyMillis, CORES));
+        for (String step : STEPS) {
+            LongAdder[] times = stepTimes.get(step);
+            long count = times[0].sum();
+            double meanMillis = count == 0 ? 0 : times[1].sum() / 1e3 / count;
+            report.append(String.format("%n\t- %-10s %8.1f ms", step + ':', meanMillis));
+        }
+        System.out.println(report);
+
+        File[] outputs = outputDir.toFile().listFiles();
+        if (outputs != null) for (File output : outputs) Files.delete(output.toPath());
+        Files.delete(outputDir);
+    }
+
+    /**
+     * Processes the images, with at most as many images in process as fit in the queue of a stage, which rejects the
+     * tasks when it's full, like the messages leased by the subscriber.
+     * @return the number of images whose processing failed
+     */
+    @Benchmark
+    @OperationsPerInvocation(IMAGES)
+    public int pipeline() throws Throwable {
+        Semaphore inProcess = new Semaphore(QUEUE_CAPACITY);
+        AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < IMAGES; i++) {
+            inProcess.acquire();
+            String id = "benchmark-" + ids.incrementAndGet();
+            PubSubMessage message = new PubSubMessage(id, "benchmark.jpg", "image/jpeg", "benchmark", id, null, null);
+            Span processSpan = Tracer.startSpan("process", null);
+            Span visionSpan = processSpan.startChild("vision");
+            detect(message)
+                    .whenComplete((response, error) -> visionSpan.end())
+                    .thenApplyAsync(response -> render(response, processSpan), renderStage)
+                    .thenAcceptAsync(annotated -> {
+                        Span storeSpan = processSpan.startChild("gcs-write");
+                        store(outputDir.resolve(id), annotated);
+                        storeSpan.end();
+                    }, storeStage)
+                    .whenComplete((stored, error) -> {
+                        if (error != null) {
+                            failed.incrementAndGet();
+                            System.out.println("* ERROR * Image '" + id + "' failed: " + error.getMessage());
+                        }
+                        processSpan.end();
+                        inProcess.release();
+                    });
+        }
+        inProcess.acquire(QUEUE_CAPACITY);
+        return failed.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<AnnotateImageResponse> detect(PubSubMessage message) throws Throwable {
+        return (CompletableFuture<AnnotateImageResponse>) detect.invokeExact(detector, message, image);
+    }
+
+    private byte[] render(AnnotateImageResponse response, Span processSpan) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) image.getSize());
+        try {
+            renderAnnotatedImage.invokeExact(image, response.getLocalizedObjectAnnotationsList(), (OutputStream) out,
+                    processSpan);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } catch (Throwable e) {
+            throw new CompletionException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static void store(Path path, byte[] annotated) {
+        try (OutputStream out = Files.newOutputStream(path)) {
+            out.write(annotated);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ImageContent readImage(String imageFile) throws IOException {
+        if (!imageFile.isEmpty()) {
+            byte[] content = Files.readAllBytes(Path.of(imageFile));
+            String contentType = Files.probeContentType(Path.of(imageFile));
+            if (contentType == null) contentType = "image/jpeg";
+            return new ImageContent(ByteString.copyFrom(content), contentType, null);
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ImageIO.write(SyntheticImages.create(1920, 1080), "jpeg", encoded);
+        return new ImageContent(ByteString.copyFrom(encoded.toByteArray()), "image/jpeg", null);
+    }
+}
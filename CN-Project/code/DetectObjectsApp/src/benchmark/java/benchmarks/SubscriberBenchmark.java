@@ -0,0 +1,196 @@
+package benchmarks;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.core.CredentialsProvider;
+import com.google.api.gax.core.InstantiatingExecutorProvider;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.api.gax.rpc.TransportChannelProvider;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.cloud.pubsub.v1.SubscriptionAdminClient;
+import com.google.cloud.pubsub.v1.SubscriptionAdminSettings;
+import com.google.cloud.pubsub.v1.TopicAdminClient;
+import com.google.cloud.pubsub.v1.TopicAdminSettings;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.ProjectSubscriptionName;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.PushConfig;
+import com.google.pubsub.v1.TopicName;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Measures the throughput of the subscriber of the Detect Objects App against the Pub/Sub emulator, comparing the
+ * previous settings, a single executor thread without flow control, with the settings of PubSub.newSubscriberBuilder.
+ * Before each invocation a backlog of messages is published to a new topic, and the invocation consumes it. The
+ * processing of each message is simulated with a wait, as the calls to the Vision API, the Cloud Storage and the
+ * Firestore, followed by some CPU work, as the annotation of the image.
+ * PubSub is in the default package, so its builder is called through a method handle.
+ * <p>
+ * Usage, after mvn -Pbenchmark package:
+ * PUBSUB_EMULATOR_HOST=localhost:8085 java -cp target/DetectObjectsApp-1.0-jar-with-dependencies.jar
+ * org.openjdk.jmh.Main SubscriberBenchmark [-p waitMillis=...] [-p cpuMillis=...] [-p messageBytes=...]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class SubscriberBenchmark {
+    private static final String PROJECT_ID = "benchmark-project";
+    private static final int MESSAGES = 1000; // Per invocation
+
+    @Param({"100"})
+    public long waitMillis;
+
+    @Param({"10"})
+    public long cpuMillis;
+
+    @Param({"1024"})
+    public int messageBytes;
+
+    private final CredentialsProvider credentialsProvider = NoCredentialsProvider.create();
+    private ManagedChannel channel;
+    private TransportChannelProvider channelProvider;
+    private MethodHandle newSubscriberBuilder;
+    private ProjectSubscriptionName subscription;
+    // Redelivered messages are only counted once
+    private Set<String> processed;
+    private CountDownLatch done;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        String emulatorHost = System.getenv("PUBSUB_EMULATOR_HOST");
+        if (emulatorHost == null) {
+            throw new IllegalStateException("The environment variable PUBSUB_EMULATOR_HOST must be defined with the " +
+                    "emulator address.");
+        }
+        channel = ManagedChannelBuilder.forTarget(emulatorHost).usePlaintext().build();
+        channelProvider = FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel));
+        Method builder = Class.forName("PubSub")
+                .getDeclaredMethod("newSubscriberBuilder", ProjectSubscriptionName.class, MessageReceiver.class);
+        builder.setAccessible(true);
+        newSubscriberBuilder = MethodHandles.lookup().unreflect(builder);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.shutdownNow();
+    }
+
+    /**
+     * All the messages are published before the subscriber starts, so the backlog is consumed as fast as possible.
+     */
+    @Setup(Level.Invocation)
+    public void publishBacklog() throws Exception {
+        String suffix = String.valueOf(System.nanoTime());
+        TopicName topic = TopicName.of(PROJECT_ID, "benchmark-" + suffix);
+        subscription = ProjectSubscriptionName.of(PROJECT_ID, "benchmark-" + suffix);
+        createTopicAndSubscription(topic, subscription);
+
+        Publisher publisher = Publisher.newBuilder(topic)
+                .setChannelProvider(channelProvider)
+                .setCredentialsProvider(credentialsProvider)
+                .build();
+        try {
+            ByteString data = ByteString.copyFrom(new byte[messageBytes]);
+            List<ApiFuture<String>> futures = new ArrayList<>(MESSAGES);
+            for (int i = 0; i < MESSAGES; i++) {
+                futures.add(publisher.publish(PubsubMessage.newBuilder().setData(data).build()));
+            }
+            ApiFutures.allAsList(futures).get();
+        } finally {
+            publisher.shutdown();
+            publisher.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void singleThread() throws Exception {
+        consume(Subscriber.newBuilder(subscription, this::receiveMessage).setExecutorProvider(
+                InstantiatingExecutorProvider.newBuilder().setExecutorThreadCount(1).build()
+        ));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void configured() throws Throwable {
+        MessageReceiver receiver = this::receiveMessage;
+        consume((Subscriber.Builder) newSubscriberBuilder.invokeExact(subscription, receiver));
+    }
+
+    private void receiveMessage(PubsubMessage message, AckReplyConsumer consumer) {
+        try {
+            Thread.sleep(waitMillis);
+            long cpuEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(cpuMillis);
+            while (System.nanoTime() < cpuEnd) Thread.onSpinWait();
+            consumer.ack();
+            if (processed.add(message.getMessageId())) done.countDown();
+        } catch (InterruptedException e) {
+            consumer.nack();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void consume(Subscriber.Builder subscriberBuilder) throws Exception {
+        processed = ConcurrentHashMap.newKeySet();
+        done = new CountDownLatch(MESSAGES);
+        Subscriber subscriber = subscriberBuilder
+                .setChannelProvider(channelProvider)
+                .setCredentialsProvider(credentialsProvider)
+                .build();
+        subscriber.startAsync().awaitRunning();
+        boolean completed = done.await(30, TimeUnit.MINUTES);
+        subscriber.stopAsync().awaitTerminated();
+        if (!completed) throw new TimeoutException((MESSAGES - done.getCount()) + " messages consumed in 30 minutes.");
+    }
+
+    private void createTopicAndSubscription(TopicName topic, ProjectSubscriptionName subscription) throws Exception {
+        TopicAdminSettings topicAdminSettings = TopicAdminSettings.newBuilder()
+                .setTransportChannelProvider(channelProvider)
+                .setCredentialsProvider(credentialsProvider)
+                .build();
+        try (TopicAdminClient topicAdmin = TopicAdminClient.create(topicAdminSettings)) {
+            topicAdmin.createTopic(topic);
+        }
+        SubscriptionAdminSettings subscriptionAdminSettings = SubscriptionAdminSettings.newBuilder()
+                .setTransportChannelProvider(channelProvider)
+                .setCredentialsProvider(credentialsProvider)
+                .build();
+        try (SubscriptionAdminClient subscriptionAdmin = SubscriptionAdminClient.create(subscriptionAdminSettings)) {
+            subscriptionAdmin.createSubscription(subscription, topic, PushConfig.getDefaultInstance(), 30);
+        }
+    }
+}
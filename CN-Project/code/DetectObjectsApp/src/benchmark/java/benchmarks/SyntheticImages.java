@@ -0,0 +1,55 @@
+package benchmarks;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Images of the benchmarks: the image of the file given, which should be a typical upload, or a synthetic image, with
+ * gradients, shapes and noise.
+ */
+public class SyntheticImages {
+
+    /**
+     * @param imageFile - path of the image, or empty for a synthetic Full HD image
+     */
+    public static BufferedImage readOrCreate(String imageFile) throws IOException {
+        if (imageFile.isEmpty()) return create(1920, 1080);
+        BufferedImage img = ImageIO.read(new File(imageFile));
+        if (img == null) throw new IOException("Unsupported image format of '" + imageFile + "'.");
+        return img;
+    }
+
+    public static BufferedImage create(int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D gfx = img.createGraphics();
+        gfx.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        gfx.setPaint(new GradientPaint(0, 0, new Color(0x87ceeb), 0, height, new Color(0x2e8b57)));
+        gfx.fillRect(0, 0, width, height);
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            gfx.setColor(new Color(random.nextInt(0xffffff)));
+            gfx.fillOval(random.nextInt(width), random.nextInt(height), 20 + random.nextInt(200), 20 + random.nextInt(200));
+        }
+        gfx.dispose();
+        // Sensor noise, which makes most of the size of the photos
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb = img.getRGB(x, y);
+                int noise = (int) (random.nextGaussian() * 6);
+                int r = clamp(((rgb >> 16) & 0xff) + noise);
+                int g = clamp(((rgb >> 8) & 0xff) + noise);
+                int b = clamp((rgb & 0xff) + noise);
+                img.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return img;
+    }
+
+    private static int clamp(int value) {
+        return Math.min(Math.max(value, 0), 255);
+    }
+}
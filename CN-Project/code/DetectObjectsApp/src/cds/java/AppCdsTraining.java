@@ -0,0 +1,86 @@
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.cloud.vision.v1.ImageAnnotatorSettings;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.ProjectSubscriptionName;
+import models.ImageContent;
+import models.PubSubMessage;
+import tracing.Span;
+import tracing.Tracer;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Training run of the class data sharing (AppCDS) archive created by the 'cds' Maven profile: it loads the classes
+ * that the application loads until it processes its first messages, so they're read from the archive by the next
+ * starts instead of being parsed and verified again. The clients are created without credentials and never called,
+ * and the images are annotated with synthetic detections, so it doesn't need the cloud services.
+ */
+public class AppCdsTraining {
+    private static final String PROJECT_ID = "cds-training";
+
+    public static void main(String[] args) throws Exception {
+        long start = System.currentTimeMillis();
+
+        Storage storage = StorageOptions.newBuilder()
+                .setProjectId(PROJECT_ID)
+                .setCredentials(NoCredentials.getInstance())
+                .build()
+                .getService();
+        Firestore db = FirestoreOptions.newBuilder()
+                .setProjectId(PROJECT_ID)
+                .setCredentials(NoCredentials.getInstance())
+                .build()
+                .getService();
+        db.bulkWriter().close();
+        ImageAnnotatorClient vision = ImageAnnotatorClient.create(ImageAnnotatorSettings.newBuilder()
+                .setCredentialsProvider(NoCredentialsProvider.create())
+                .build());
+        ProjectSubscriptionName subscriptionName = ProjectSubscriptionName.of(PROJECT_ID, "workers");
+        Subscriber subscriber = PubSub.newSubscriberBuilder(subscriptionName, new MessageReceiveHandler(storage))
+                .setCredentialsProvider(NoCredentialsProvider.create())
+                .build();
+
+        ObjectDetector detector = new SyntheticObjectDetector(5, 0);
+        for (String format : new String[]{"jpeg", "png"}) {
+            PubSubMessage message = new PubSubMessage(format, "training", format, PROJECT_ID, format, null, null);
+            AnnotateImageResponse response = detector.detect(message, null).join();
+            CompactDetections.encode(Vision.getDetectedObjects(response));
+
+            Span processSpan = Tracer.startSpan("process", null);
+            ImageContent image = new ImageContent(syntheticImage(format), "image/" + format, null);
+            ByteArrayOutputStream annotated = new ByteArrayOutputStream();
+            Vision.renderAnnotatedImage(image, response.getLocalizedObjectAnnotationsList(), annotated, processSpan);
+            processSpan.end();
+        }
+
+        vision.close();
+        vision.awaitTermination(5, TimeUnit.SECONDS);
+        db.close();
+        System.out.println("AppCDS training finished in " + (System.currentTimeMillis() - start) + " ms, " +
+                "subscriber in state " + subscriber.state() + '.');
+        System.exit(0);
+    }
+
+    private static ByteString syntheticImage(String format) throws Exception {
+        BufferedImage img = new BufferedImage(640, 480, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D gfx = img.createGraphics();
+        gfx.setPaint(new GradientPaint(0, 0, new Color(0x87ceeb), 0, 480, new Color(0x2e8b57)));
+        gfx.fillRect(0, 0, 640, 480);
+        gfx.dispose();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ImageIO.write(img, format, encoded);
+        return ByteString.copyFrom(encoded.toByteArray());
+    }
+}
@@ -0,0 +1,126 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.ImageOutputStreamImpl;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * Encodes the annotated images in the format of the original image. The JPEG images, most of the uploads, are encoded
+ * with the settings in the environment variables:
+ * <ul>
+ *     <li>ENCODE_JPEG_QUALITY: quality from 0 to 1, 0.75 by default, the lower the faster and smaller;</li>
+ *     <li>ENCODE_JPEG_PROGRESSIVE: 'true' to encode progressive images, which are shown while downloaded;</li>
+ *     <li>ENCODE_JPEG_OPTIMIZE_HUFFMAN: 'true' to compute the Huffman tables of each image, which makes it smaller at
+ *     the cost of a second pass over the image, always used by the progressive images.</li>
+ * </ul>
+ */
+public class AnnotatedImageEncoder {
+    // Same as the default quality of the JPEG writer
+    private static final float DEFAULT_JPEG_QUALITY = 0.75f;
+    private static final AnnotatedImageEncoder fromEnv = new AnnotatedImageEncoder(
+            Env.getFloat("ENCODE_JPEG_QUALITY", DEFAULT_JPEG_QUALITY, 0, 1),
+            Boolean.parseBoolean(System.getenv("ENCODE_JPEG_PROGRESSIVE")),
+            Boolean.parseBoolean(System.getenv("ENCODE_JPEG_OPTIMIZE_HUFFMAN"))
+    );
+
+    private final Float jpegQuality; // Null for the default of the JPEG writer
+    private final boolean progressive;
+    private final boolean optimizeHuffman;
+
+    public AnnotatedImageEncoder(Float jpegQuality, boolean progressive, boolean optimizeHuffman) {
+        this.jpegQuality = jpegQuality;
+        this.progressive = progressive;
+        this.optimizeHuffman = optimizeHuffman;
+    }
+
+    public static AnnotatedImageEncoder fromEnv() {
+        return fromEnv;
+    }
+
+    /**
+     * @param formatName e.g. jpeg, png
+     */
+    public void encode(BufferedImage img, String formatName, OutputStream out) throws IOException {
+        Iterator<ImageWriter> imageWriters = ImageIO.getImageWritersByFormatName(formatName);
+        if (!imageWriters.hasNext()) throw new IOException("Unsupported image format '" + formatName + "'.");
+
+        ImageWriter imageWriter = imageWriters.next();
+        // The JPEG writer only writes forward, so the encoded bytes are passed on as they're written, while the
+        // writers of other formats, e.g. PNG, go back to complete what they wrote, so the image is kept in memory
+        boolean jpeg = imageWriter.getDefaultWriteParam() instanceof JPEGImageWriteParam;
+        try (ImageOutputStream output = jpeg ? new ForwardImageOutputStream(out) : new MemoryCacheImageOutputStream(out)) {
+            imageWriter.setOutput(output);
+            ImageWriteParam param = imageWriter.getDefaultWriteParam();
+            if (param instanceof JPEGImageWriteParam) {
+                JPEGImageWriteParam jpegParam = (JPEGImageWriteParam) param;
+                if (jpegQuality != null) {
+                    jpegParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                    jpegParam.setCompressionQuality(jpegQuality);
+                }
+                if (progressive) jpegParam.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+                jpegParam.setOptimizeHuffmanTables(optimizeHuffman);
+            }
+            imageWriter.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            imageWriter.dispose();
+        }
+    }
+
+    /**
+     * Output stream that writes directly to the underlying stream, without a cache, so it can't seek.
+     */
+    private static class ForwardImageOutputStream extends ImageOutputStreamImpl {
+        private final OutputStream out;
+
+        private ForwardImageOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            flushBits();
+            out.write(b);
+            streamPos++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            flushBits();
+            out.write(b, off, len);
+            streamPos += len;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new IOException("The stream is write only.");
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            throw new IOException("The stream is write only.");
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            if (pos != streamPos) throw new IOException("The stream can't seek.");
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "quality " + (jpegQuality != null ? jpegQuality : "default") + (progressive ? ", progressive" : "") +
+                (optimizeHuffman ? ", optimized Huffman" : "");
+    }
+}
@@ -0,0 +1,63 @@
+import com.google.cloud.vision.v1.LocalizedObjectAnnotation;
+import com.google.cloud.vision.v1.NormalizedVertex;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Draws the bounding boxes and names of the detected objects on an image, all in one pass with a single graphics
+ * context. The font and stroke are scaled to the resolution of the image, so the annotations are as readable in a
+ * photo of 12 megapixels as in a thumbnail, and are cached by size since only a few different sizes are used.
+ */
+public class AnnotationRenderer {
+    private static final Color COLOR = new Color(0x00ff00);
+    private static final String FONT_NAME = "Arial";
+    private static final int BASE_FONT_SIZE = 18;
+    private static final float BASE_STROKE_WIDTH = 3;
+    private static final int BASE_RESOLUTION = 1000; // Smallest side of the image for which the base sizes are used
+
+    private static final ConcurrentHashMap<Integer, Font> fonts = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, Stroke> strokes = new ConcurrentHashMap<>();
+
+    public static void render(BufferedImage img, List<LocalizedObjectAnnotation> objects) {
+        if (objects.isEmpty()) return;
+        int width = img.getWidth();
+        int height = img.getHeight();
+        double scale = Math.max(1, (double) Math.min(width, height) / BASE_RESOLUTION);
+        int fontSize = (int) Math.round(BASE_FONT_SIZE * scale);
+        int strokeWidth = (int) Math.round(BASE_STROKE_WIDTH * scale);
+
+        Graphics2D gfx = img.createGraphics();
+        try {
+            gfx.setFont(fonts.computeIfAbsent(fontSize, size -> new Font(FONT_NAME, Font.PLAIN, size)));
+            gfx.setStroke(strokes.computeIfAbsent(strokeWidth, BasicStroke::new));
+            gfx.setColor(COLOR);
+
+            // The vertices of each object are converted to pixels in the same arrays, most objects have 4 vertices
+            int[] xPoints = new int[4];
+            int[] yPoints = new int[4];
+            for (LocalizedObjectAnnotation obj : objects) {
+                List<NormalizedVertex> vertices = obj.getBoundingPoly().getNormalizedVerticesList();
+                if (vertices.isEmpty()) continue;
+                if (vertices.size() > xPoints.length) {
+                    xPoints = new int[vertices.size()];
+                    yPoints = new int[vertices.size()];
+                }
+                for (int i = 0; i < vertices.size(); i++) {
+                    NormalizedVertex vertex = vertices.get(i);
+                    xPoints[i] = (int) (width * vertex.getX());
+                    yPoints[i] = (int) (height * vertex.getY());
+                }
+
+                // Draw object name and bounding box of object
+                NormalizedVertex first = vertices.get(0);
+                gfx.drawString(obj.getName(), first.getX() * width, first.getY() * height - strokeWidth);
+                gfx.drawPolygon(xPoints, yPoints, vertices.size());
+            }
+        } finally {
+            gfx.dispose();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import com.google.cloud.BaseServiceException;
+import models.ImageContent;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Decodes the images to annotate within a memory budget, so the images processed in parallel can't exhaust the heap.
+ * The dimensions of an image are read before it's decoded and:
+ * <ul>
+ *     <li>images with more than DECODE_MAX_PIXELS pixels (50 megapixels by default) are decoded with a subsampling
+ *     that fits them in that number of pixels, as the annotations don't need more resolution;</li>
+ *     <li>the bytes of the decoded pixels are reserved from a budget shared by all the images, DECODE_BUDGET_MB
+ *     megabytes (half of the maximum heap by default), waiting until there are enough bytes available.</li>
+ * </ul>
+ * The downloaded images are also kept in memory within this budget, see {@link #tryReserve(long)}.
+ */
+public class BoundedImageDecoder {
+    private static final long MAX_PIXELS = Env.getLong("DECODE_MAX_PIXELS", 50_000_000L, 1);
+    // The permits are kilobytes, so the budget fits in an int
+    private static final int BUDGET_KB = (int) Math.min(
+            Env.getLong("DECODE_BUDGET_MB", Runtime.getRuntime().maxMemory() / 2 / 1024 / 1024, 1) * 1024,
+            Integer.MAX_VALUE
+    );
+    private static final Semaphore budget = new Semaphore(BUDGET_KB, true);
+
+    /**
+     * An image decoded with bytes reserved from the budget, which must be closed once the image isn't needed.
+     */
+    public static class DecodedImage implements AutoCloseable {
+        private final BufferedImage image;
+        private final int reservedKb;
+        private boolean closed;
+
+        private DecodedImage(BufferedImage image, int reservedKb) {
+            this.image = image;
+            this.reservedKb = reservedKb;
+        }
+
+        public BufferedImage getImage() {
+            return image;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            budget.release(reservedKb);
+        }
+    }
+
+    /**
+     * Reserves bytes from the budget without waiting, e.g. for the content of a downloaded image, so an image never
+     * waits for the budget while holding part of it.
+     * @return the action that releases the bytes reserved, or null if there aren't enough bytes available
+     */
+    public static Runnable tryReserve(long bytes) {
+        int reservedKb = toReservedKb(bytes);
+        if (!budget.tryAcquire(reservedKb)) return null;
+        return () -> budget.release(reservedKb);
+    }
+
+    /**
+     * The bytes reserved for the content of the image are released before waiting for the budget, and reserved again
+     * together with the decoded pixels, until the decoded image is closed.
+     */
+    public static DecodedImage decode(ImageContent image) throws IOException, InterruptedException {
+        long contentBytes = image.releaseReservation() ? image.getBuffer().length : 0;
+        try (InputStream content = image.openStream();
+             ImageInputStream input = ImageIO.createImageInputStream(content)) {
+            if (input == null) throw new IOException("The image content can't be read.");
+            Iterator<ImageReader> imageReaders = ImageIO.getImageReaders(input);
+            if (!imageReaders.hasNext()) throw new IIOException("Unsupported image format.");
+
+            ImageReader imageReader = imageReaders.next();
+            try {
+                imageReader.setInput(input, true, true);
+                int width = imageReader.getWidth(0);
+                int height = imageReader.getHeight(0);
+                long pixels = (long) width * height;
+
+                ImageReadParam param = imageReader.getDefaultReadParam();
+                int subsampling = 1;
+                if (pixels > MAX_PIXELS) {
+                    subsampling = (int) Math.ceil(Math.sqrt((double) pixels / MAX_PIXELS));
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    System.out.println("\t- Image with " + width + 'x' + height + " pixels decoded with a subsampling of " +
+                            subsampling + '.');
+                }
+                long decodedPixels = (long) ceilDiv(width, subsampling) * ceilDiv(height, subsampling);
+                long decodedBytes = decodedPixels * getBytesPerPixel(imageReader);
+
+                int reservedKb = toReservedKb(contentBytes + decodedBytes);
+                budget.acquire(reservedKb);
+                try {
+                    return new DecodedImage(imageReader.read(0, param), reservedKb);
+                } catch (IOException | RuntimeException | Error e) {
+                    budget.release(reservedKb);
+                    throw e;
+                }
+            } catch (IIOException | RuntimeException e) {
+                rethrowStreamError(e);
+                if (e instanceof IIOException) throw (IIOException) e;
+                // The readers fail with unchecked exceptions on some corrupt images
+                throw new IIOException("Corrupt image: " + e, e);
+            } finally {
+                imageReader.dispose();
+            }
+        }
+    }
+
+    /**
+     * The errors reading a streamed image, e.g. a Cloud Storage error or a reset connection, aren't errors of the image,
+     * even when wrapped by the reader, so they're thrown as they are, to be retried instead of given up.
+     */
+    private static void rethrowStreamError(Exception error) throws IOException {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof BaseServiceException) throw (BaseServiceException) cause;
+            if (cause instanceof IOException && !(cause instanceof IIOException)) throw (IOException) cause;
+        }
+    }
+
+    /**
+     * An image bigger than the whole budget waits for all of it, so it's decoded alone.
+     */
+    private static int toReservedKb(long bytes) {
+        return (int) Math.min(Math.max(bytes / 1024, 1), BUDGET_KB);
+    }
+
+    /**
+     * The images are decoded to the type of their pixels, e.g. 3 bytes per pixel for most JPEG images.
+     */
+    private static int getBytesPerPixel(ImageReader imageReader) throws IOException {
+        Iterator<ImageTypeSpecifier> imageTypes = imageReader.getImageTypes(0);
+        if (!imageTypes.hasNext()) return 4;
+        int bitsPerPixel = imageTypes.next().getColorModel().getPixelSize();
+        return Math.max((bitsPerPixel + 7) / 8, 1);
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
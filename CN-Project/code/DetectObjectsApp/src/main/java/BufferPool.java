@@ -0,0 +1,56 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the buffers in which the images are downloaded, so the arrays of several megabytes aren't allocated for
+ * every message. The buffers have sizes that are powers of two, from 64KB to 64MB, and at most MAX_POOLED_BYTES are
+ * kept. Bigger buffers have the exact size requested and aren't pooled.
+ */
+public class BufferPool {
+    private static final int MIN_SIZE_SHIFT = 16; // 64KB
+    private static final int MAX_SIZE_SHIFT = 26; // 64MB
+    public static final int MAX_POOLED_BUFFER_BYTES = 1 << MAX_SIZE_SHIFT;
+    private static final long MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    private static final ConcurrentHashMap<Integer, Queue<byte[]>> buffers = new ConcurrentHashMap<>();
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    /**
+     * @return a buffer with at least the size requested
+     */
+    public static byte[] acquire(int size) {
+        if (size > MAX_POOLED_BUFFER_BYTES) return new byte[size];
+        int sizeClass = getSizeClass(size);
+        Queue<byte[]> pool = buffers.get(sizeClass);
+        byte[] buffer = pool == null ? null : pool.poll();
+        if (buffer == null) return new byte[1 << sizeClass];
+        pooledBytes.addAndGet(-buffer.length);
+        return buffer;
+    }
+
+    /**
+     * @return the size of the buffer acquired for the size requested
+     */
+    public static int getBufferSize(int size) {
+        return size > MAX_POOLED_BUFFER_BYTES ? size : 1 << getSizeClass(size);
+    }
+
+    private static int getSizeClass(int size) {
+        return Math.max(MIN_SIZE_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size - 1, 1)));
+    }
+
+    /**
+     * Returns the buffer to the pool, it must not be used afterwards.
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length > MAX_POOLED_BUFFER_BYTES || Integer.bitCount(buffer.length) != 1) return;
+        if (pooledBytes.addAndGet(buffer.length) > MAX_POOLED_BYTES) {
+            pooledBytes.addAndGet(-buffer.length);
+            return;
+        }
+        int sizeClass = Integer.numberOfTrailingZeros(buffer.length);
+        buffers.computeIfAbsent(sizeClass, key -> new ConcurrentLinkedQueue<>()).add(buffer);
+    }
+}
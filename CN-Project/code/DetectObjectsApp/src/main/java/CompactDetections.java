@@ -0,0 +1,60 @@
+import models.DetectedObject;
+import models.Vertex;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs the objects detected in an image to be stored in its request document, instead of one document per object:
+ * <ul>
+ *     <li>the dictionary is the list of the distinct object names, each name is stored once;</li>
+ *     <li>the detections are a byte array where each object is the code of its name in the dictionary (2 bytes), its
+ *     score (4 bytes float), the number of vertices (1 byte) and the x and y of each vertex (4 bytes floats).</li>
+ * </ul>
+ * The bytes are in big endian order, a box with 4 vertices takes 39 bytes.
+ */
+public class CompactDetections {
+    private final List<String> dictionary;
+    private final byte[] detections;
+
+    private CompactDetections(List<String> dictionary, byte[] detections) {
+        this.dictionary = dictionary;
+        this.detections = detections;
+    }
+
+    public List<String> getDictionary() {
+        return dictionary;
+    }
+
+    public byte[] getDetections() {
+        return detections;
+    }
+
+    public static CompactDetections encode(List<DetectedObject> detectedObjects) {
+        List<String> dictionary = new ArrayList<>();
+        Map<String, Integer> codes = new HashMap<>();
+        int size = 0;
+        for (DetectedObject obj : detectedObjects) {
+            codes.computeIfAbsent(obj.getName(), name -> {
+                dictionary.add(name);
+                return dictionary.size() - 1;
+            });
+            size += Short.BYTES + Float.BYTES + Byte.BYTES + obj.getObjectVertices().size() * 2 * Float.BYTES;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (DetectedObject obj : detectedObjects) {
+            buffer.putShort(codes.get(obj.getName()).shortValue());
+            buffer.putFloat((float) obj.getScore());
+            buffer.put((byte) obj.getObjectVertices().size());
+            for (Vertex vertex : obj.getObjectVertices()) {
+                buffer.putFloat(vertex.getX());
+                buffer.putFloat(vertex.getY());
+            }
+        }
+        return new CompactDetections(dictionary, buffer.array());
+    }
+}
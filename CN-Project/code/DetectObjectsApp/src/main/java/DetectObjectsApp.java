@@ -3,6 +3,15 @@ import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.StorageOptions;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
 
 public class DetectObjectsApp {
     private static Storage storage;
@@ -21,11 +30,61 @@ public class DetectObjectsApp {
         }
     }
 
+    /**
+     * Creates the clients of the Cloud Storage, the Firestore and the object detector at the same time, since each one
+     * mostly waits for its credentials and its connection, so a new instance starts processing messages sooner.
+     */
+    private static void initClients() throws IOException {
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            CompletableFuture.allOf(
+                    CompletableFuture.runAsync(DetectObjectsApp::initStorage, executor),
+                    CompletableFuture.runAsync(FirestoreOperations::initFirestore, executor),
+                    CompletableFuture.runAsync(() -> {
+                        try {
+                            DetectionPipeline.setObjectDetector(ObjectDetector.fromEnv());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, executor)
+            ).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) e.getCause()).getCause();
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+        System.out.println("\t- Clients created in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
     public static void main(String[] args) throws IOException {
-        initStorage();
-        FirestoreOperations.initFirestore();
-        Subscriber subscriber = PubSub.subscribeMessages(projectId, storage);
+        initClients();
+        DetectionPipeline.startReports();
+        WorkerMetrics.start("METRICS_PORT");
+        List<Subscriber> subscribers = PubSub.subscribeMessages(projectId, storage);
+        GracefulShutdown.install(subscribers);
+        WorkerMetrics.started();
         System.out.println("Detect Objects App running...\n");
-        subscriber.awaitTerminated();
+        subscribers.forEach(Subscriber::awaitTerminated);
+    }
+
+    /**
+     * Entry point used by the gRPC server when both applications run in the same JVM. Instead of subscribing the
+     * Pub/Sub topic, the messages are received through the returned consumer, which enqueues them in memory.
+     * It's called by reflection, as the application is loaded with its own class loader, so only JDK types are used.
+     */
+    public static BiConsumer<Map<String, String>, ByteBuffer> startEmbedded(
+            int queueCapacity,
+            int workerThreads
+    ) throws IOException {
+        initClients();
+        DetectionPipeline.startReports();
+        // The gRPC server already listens on METRICS_PORT
+        WorkerMetrics.start("EMBEDDED_METRICS_PORT");
+        EmbeddedQueue queue = new EmbeddedQueue(queueCapacity, workerThreads, new MessageReceiveHandler(storage));
+        WorkerMetrics.started();
+        System.out.println("Detect Objects App running embedded with " + workerThreads + " worker thread(s)...");
+        return queue;
     }
 }
@@ -0,0 +1,245 @@
+import com.google.cloud.storage.Storage;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.LocalizedObjectAnnotation;
+import models.DetectedObject;
+import models.ImageContent;
+import models.ProcessingMarker;
+import models.PubSubMessage;
+import tracing.Span;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processes each message in stages, each one with its own threads, so the images waiting for the network don't hold
+ * the threads that decode, annotate and encode other images:
+ * <ol>
+ *     <li>fetch (I/O): the download of the original image from the Cloud Storage;</li>
+ *     <li>detect: the request to the {@link ObjectDetector}, by default the Vision API, batched with the other
+ *     messages and waited without a thread;</li>
+ *     <li>render (CPU): the decoding, annotation and encoding of the image, with as many threads as cores;</li>
+ *     <li>store (I/O): the upload of the annotated image to the Cloud Storage, while it's encoded, each one in a
+ *     thread of its own, up to PIPELINE_STORE_THREADS (4 per core by default), so the encoding rarely waits for an
+ *     upload that hasn't started, and a short queue of PIPELINE_STORE_QUEUE_CAPACITY uploads (a render thread's worth
+ *     by default) for the bursts.</li>
+ * </ol>
+ * Then the documents of the image are written to the Firestore, together with the documents of other images.
+ * A message delivered again skips the stages already finished, see {@link IdempotentProcessing}.
+ * With the environment variable ANNOTATION_OUTPUT set to 'overlay', only the objects are detected and stored, without
+ * the fetch, render and store stages, and the annotated image is rendered by the gRPC server if it's downloaded.
+ * The queue depth and the service time of each stage are logged every PIPELINE_REPORT_SECONDS seconds (60 by default),
+ * and the queue depth and active threads are also exported with the {@link WorkerMetrics}.
+ */
+public class DetectionPipeline {
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final int IO_THREADS = Env.getInt("PIPELINE_IO_THREADS", 4 * CORES, 1);
+    private static final int CPU_THREADS = Env.getInt("PIPELINE_CPU_THREADS", CORES, 1);
+    // Each render thread has an upload in progress, and the uploads may still be finishing when the next renders start
+    private static final int STORE_THREADS = Env.getInt("PIPELINE_STORE_THREADS", 4 * CORES, CPU_THREADS);
+    // The messages leased by the subscriber are already limited, so the queues should rarely be full
+    private static final int QUEUE_CAPACITY = Env.getInt("PIPELINE_QUEUE_CAPACITY", 64, 1);
+    // A queued upload holds its render thread, which writes to it, until a store thread is free, so it stays short
+    private static final int STORE_QUEUE_CAPACITY = Env.getInt("PIPELINE_STORE_QUEUE_CAPACITY", CPU_THREADS, 1);
+    private static final int REPORT_SECONDS = Env.getInt("PIPELINE_REPORT_SECONDS", 60, 1);
+    private static final boolean OVERLAY_OUTPUT = "overlay".equalsIgnoreCase(System.getenv("ANNOTATION_OUTPUT"));
+
+    private static final PipelineStage fetchStage = new PipelineStage("fetch", IO_THREADS, QUEUE_CAPACITY);
+    private static final PipelineStage renderStage = new PipelineStage("render", CPU_THREADS, QUEUE_CAPACITY);
+    private static final PipelineStage storeStage = new PipelineStage("store", STORE_THREADS, STORE_QUEUE_CAPACITY);
+    private static final List<PipelineStage> stages = List.of(fetchStage, renderStage, storeStage);
+    private static ObjectDetector objectDetector;
+
+    /**
+     * The state of a message as it goes through the stages.
+     */
+    private static class Job {
+        private final PubSubMessage message;
+        private final Span processSpan;
+        private AnnotateImageResponse response;
+        private ImageContent image;
+        private long imageBytes;
+
+        private Job(PubSubMessage message, Span processSpan) {
+            this.message = message;
+            this.processSpan = processSpan;
+        }
+    }
+
+    public static void setObjectDetector(ObjectDetector detector) {
+        objectDetector = detector;
+    }
+
+    public static void startReports() {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pipeline-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(DetectionPipeline::report, REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Processes the message from the stage after the last one finished, recorded in the marker, and records each
+     * stage finished, so the message can be processed from there if it's delivered again.
+     * @return a future completed when the annotated image and the detected objects are stored, or completed
+     * exceptionally with the error of the stage that failed
+     */
+    public static CompletableFuture<Void> process(
+            Storage storage,
+            PubSubMessage message,
+            Span processSpan,
+            ProcessingMarker marker
+    ) {
+        Job job = new Job(message, processSpan);
+        // Without the response of the Vision API, which is recorded first, the stages are done from the start
+        ProcessingMarker.Stage resumeStage =
+                marker.getResponse() != null ? marker.getStage() : ProcessingMarker.Stage.CLAIMED;
+        if (resumeStage != ProcessingMarker.Stage.CLAIMED) {
+            System.out.println("\t- Request with id '" + message.getId() + "' resumed after the stage " +
+                    resumeStage + '.');
+            job.response = unchecked(() -> AnnotateImageResponse.parseFrom(marker.getResponse()));
+        }
+
+        CompletableFuture<Void> stored;
+        if (resumeStage == ProcessingMarker.Stage.STORED || (OVERLAY_OUTPUT && job.response != null)) {
+            stored = CompletableFuture.completedFuture(null);
+        } else if (OVERLAY_OUTPUT) {
+            // Only the objects are stored, so the image is only read by the Vision API, unless it's in the message
+            if (message.getContent() != null) job.image = unchecked(() -> Vision.fetchImage(storage, message));
+            stored = detect(job).thenAccept(response -> job.response = response);
+        } else {
+            stored = fetchDetectAndRender(storage, job);
+        }
+
+        return stored.thenCompose(done -> {
+            List<DetectedObject> detectedObjects = Vision.getDetectedObjects(job.response);
+            // Without the annotated image, it's rendered from the objects by the gRPC server when it's downloaded
+            String annotatedBlob = OVERLAY_OUTPUT ? null : Vision.getAnnotatedBlobName(message);
+            // The message is only acked once the documents are written, with the documents of other messages
+            Span firestoreSpan = processSpan.startChild("firestore-commit");
+            return FirestoreOperations
+                    .setDetectedObjectsInfo(message, annotatedBlob, detectedObjects)
+                    .whenComplete((written, error) -> {
+                        firestoreSpan.end();
+                        if (error != null) return;
+                        WorkerMetrics.imageProcessed(job.imageBytes);
+                        System.out.println("\t- Request and detected objects information successfully saved.");
+                    });
+        });
+    }
+
+    /**
+     * The stages are only submitted to, never waited for, so a full stage fails the future, see {@link PipelineStage}.
+     * @return a future completed when the annotated image is stored
+     */
+    private static CompletableFuture<Void> fetchDetectAndRender(Storage storage, Job job) {
+        PubSubMessage message = job.message;
+        try {
+            return CompletableFuture
+                    .runAsync(() -> {
+                        Span fetchSpan = job.processSpan.startChild("download");
+                        job.image = unchecked(() -> Vision.fetchImage(storage, message));
+                        job.imageBytes = job.image.getSize();
+                        fetchSpan.end();
+                    }, fetchStage)
+                    .thenCompose(fetched -> detect(job))
+                    .thenApplyAsync(response -> {
+                        job.response = response;
+                        return unchecked(() -> render(storage, job));
+                    }, renderStage)
+                    .whenComplete((uploaded, error) -> {
+                        // The content of the original image isn't needed anymore, also if the Vision API failed
+                        if (job.image != null) Vision.releaseImage(job.image);
+                    })
+                    .thenCompose(uploaded -> uploaded)
+                    .thenRun(() -> {
+                        System.out.println("\t- Annotated image with id '" + message.getId() + "' successfully stored.");
+                        IdempotentProcessing.recordStage(message.getId(), ProcessingMarker.Stage.STORED, null);
+                    });
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Detects the objects of the image, unless the response was recorded by a previous attempt.
+     */
+    private static CompletableFuture<AnnotateImageResponse> detect(Job job) {
+        if (job.response != null) return CompletableFuture.completedFuture(job.response);
+        Span visionSpan = job.processSpan.startChild("vision");
+        return objectDetector.detect(job.message, job.image)
+                .whenComplete((response, error) -> visionSpan.end())
+                .thenApply(response -> {
+                    IdempotentProcessing.recordStage(
+                            job.message.getId(), ProcessingMarker.Stage.DETECTED, response.toByteArray()
+                    );
+                    return response;
+                });
+    }
+
+    /**
+     * The annotated image is uploaded by the store stage while it's encoded, so the encoding doesn't wait for the
+     * whole upload, nor is the whole encoded image kept in memory.
+     * @return a future completed when the annotated image is stored
+     */
+    private static CompletableFuture<Void> render(Storage storage, Job job) throws IOException, InterruptedException {
+        PipedUpload upload = Vision.startAnnotatedImageUpload(
+                storage, job.message, job.image.getContentType(), storeStage
+        );
+        try {
+            List<LocalizedObjectAnnotation> objects = job.response.getLocalizedObjectAnnotationsList();
+            Vision.renderAnnotatedImage(job.image, objects, upload.getOutputStream(), job.processSpan);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            upload.abort();
+            throw e;
+        }
+        Span storageWriteSpan = job.processSpan.startChild("gcs-write");
+        return upload.complete().whenComplete((result, error) -> storageWriteSpan.end());
+    }
+
+    private interface StageTask<T> {
+        T run() throws IOException, InterruptedException;
+    }
+
+    private static <T> T unchecked(StageTask<T> task) {
+        try {
+            return task.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+    }
+
+    private static void report() {
+        StringBuilder report = new StringBuilder("Pipeline stages:");
+        for (PipelineStage stage : stages) {
+            long completed = stage.getCompletedTasks();
+            double meanMillis = completed == 0 ? 0 : stage.getServiceSeconds() * 1000 / completed;
+            report.append(String.format("%n\t- %s: %d queued, %d active, %d completed, %.1f ms mean service time",
+                    stage.getName(), stage.getQueueDepth(), stage.getActiveThreads(), completed, meanMillis));
+        }
+        System.out.println(report);
+    }
+
+    public static void writeMetrics(StringBuilder metrics) {
+        metrics.append("# TYPE detectobjects_pipeline_queued gauge\n");
+        for (PipelineStage stage : stages) {
+            metrics.append("detectobjects_pipeline_queued{stage=\"").append(stage.getName()).append("\"} ")
+                    .append(stage.getQueueDepth()).append('\n');
+        }
+        metrics.append("# TYPE detectobjects_pipeline_active gauge\n");
+        for (PipelineStage stage : stages) {
+            metrics.append("detectobjects_pipeline_active{stage=\"").append(stage.getName()).append("\"} ")
+                    .append(stage.getActiveThreads()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.util.Timestamps;
+import com.google.pubsub.v1.PubsubMessage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * In-process replacement of the Pub/Sub subscription, used when the application runs embedded in the gRPC server.
+ * The messages are kept in a bounded queue, so the uploads wait for free space when the workers can't keep up, and are
+ * consumed by the same MessageReceiver as the subscriber, with the same semantics: a message is removed once acked and
+ * is delivered again after a delay when nacked, or when its processing throws, with its delivery attempts counted in
+ * the same attribute as the subscription's.
+ * Only JDK types are received from the server, since each application is loaded with its own class loader, so it's
+ * stopped by the server through {@link AutoCloseable}.
+ */
+public class EmbeddedQueue implements BiConsumer<Map<String, String>, ByteBuffer>, AutoCloseable {
+    private static final long REDELIVERY_DELAY_SECONDS = 10;
+    private static final long STOP_TIMEOUT_SECONDS = 30;
+    // Read by Subscriber.getDeliveryAttempt
+    private static final String DELIVERY_ATTEMPT_ATTRIBUTE = "googclient_deliveryattempt";
+
+    private final BlockingQueue<PubsubMessage> messages;
+    private final MessageReceiver receiver;
+    private final ScheduledExecutorService redeliveryExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicLong messageIds = new AtomicLong();
+    private final List<Thread> workers = new ArrayList<>();
+    // Messages taken by a worker, or waiting to be redelivered, that weren't acked yet
+    private final AtomicInteger unacked = new AtomicInteger();
+    private volatile boolean stopped;
+
+    public EmbeddedQueue(int capacity, int workerThreads, MessageReceiver receiver) {
+        this.messages = new ArrayBlockingQueue<>(capacity);
+        this.receiver = receiver;
+        for (int i = 0; i < workerThreads; i++) {
+            Thread worker = new Thread(this::work, "embedded-worker-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Enqueues a message with the attributes and data published by the server, waiting while the queue is full.
+     * The data isn't copied, so the buffer must not be modified afterwards.
+     */
+    @Override
+    public void accept(Map<String, String> attributes, ByteBuffer data) {
+        if (stopped) throw new IllegalStateException("The embedded queue is stopped");
+        PubsubMessage message = PubsubMessage.newBuilder()
+                .setMessageId(String.valueOf(messageIds.incrementAndGet()))
+                .putAllAttributes(attributes)
+                .putAttributes(DELIVERY_ATTEMPT_ATTRIBUTE, "1")
+                .setData(UnsafeByteOperations.unsafeWrap(data))
+                .setPublishTime(Timestamps.fromMillis(System.currentTimeMillis()))
+                .build();
+        try {
+            messages.put(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for space in the embedded queue", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        stop(STOP_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * Stops accepting messages and waits, up to the timeout, for the workers to process the messages in the queue and
+     * the ones being processed or waiting to be redelivered. The messages left are lost, as the queue is in memory.
+     */
+    public void stop(long timeoutSeconds) {
+        stopped = true;
+        System.out.println("Stopping the embedded queue, " + (messages.size() + unacked.get()) +
+                " message(s) to process...");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        try {
+            while ((!messages.isEmpty() || unacked.get() > 0) && System.nanoTime() < deadline) Thread.sleep(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int left = messages.size() + unacked.get();
+        workers.forEach(Thread::interrupt);
+        redeliveryExecutor.shutdownNow();
+        if (left > 0) System.out.println("\t- Embedded queue stopped, " + left + " message(s) not processed.");
+        else System.out.println("\t- Embedded queue stopped, every message was processed.");
+    }
+
+    private void work() {
+        while (true) {
+            Reply reply = null;
+            try {
+                PubsubMessage message = messages.take();
+                unacked.incrementAndGet();
+                reply = new Reply(message);
+                receiver.receiveMessage(message, reply);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.out.println("* ERROR * Unexpected error processing a message of the embedded queue: " + e);
+                e.printStackTrace();
+                // As the subscriber would, the message is delivered again, unless it was already replied to
+                if (reply != null) reply.nack();
+            }
+        }
+    }
+
+    private class Reply implements AckReplyConsumer {
+        private final PubsubMessage message;
+        private final AtomicBoolean replied = new AtomicBoolean();
+
+        private Reply(PubsubMessage message) {
+            this.message = message;
+        }
+
+        @Override
+        public void ack() {
+            if (!replied.getAndSet(true)) unacked.decrementAndGet();
+        }
+
+        /**
+         * The message is enqueued again by another thread, so the workers keep consuming while the queue is full.
+         */
+        @Override
+        public void nack() {
+            if (replied.getAndSet(true)) return;
+            int deliveryAttempt = Integer.parseInt(message.getAttributesOrDefault(DELIVERY_ATTEMPT_ATTRIBUTE, "1"));
+            PubsubMessage redelivery = message.toBuilder()
+                    .putAttributes(DELIVERY_ATTEMPT_ATTRIBUTE, String.valueOf(deliveryAttempt + 1))
+                    .build();
+            // Counted as unacked until it's back in the queue, so the stop waits for it
+            redeliveryExecutor.schedule(() -> {
+                try {
+                    messages.put(redelivery);
+                    unacked.decrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, REDELIVERY_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Reads the numeric settings of the application from the environment variables. A value that isn't a number is
+ * replaced by the default, and a value outside the range accepted by the setting is replaced by the closest limit.
+ */
+class Env {
+    static int getInt(String name, int defaultValue, int minValue) {
+        return getInt(name, defaultValue, minValue, Integer.MAX_VALUE);
+    }
+
+    static int getInt(String name, int defaultValue, int minValue, int maxValue) {
+        return (int) getLong(name, defaultValue, minValue, maxValue);
+    }
+
+    static long getLong(String name, long defaultValue, long minValue) {
+        return getLong(name, defaultValue, minValue, Long.MAX_VALUE);
+    }
+
+    static long getLong(String name, long defaultValue, long minValue, long maxValue) {
+        String value = System.getenv(name);
+        if (value == null) return defaultValue;
+        try {
+            long parsed = Long.parseLong(value);
+            if (parsed >= minValue && parsed <= maxValue) return parsed;
+            long limit = parsed < minValue ? minValue : maxValue;
+            System.out.println("* ERROR * Invalid value '" + value + "' for " + name + ", using " + limit + '.');
+            return limit;
+        } catch (NumberFormatException e) {
+            System.out.println("* ERROR * Invalid value '" + value + "' for " + name + ", using " + defaultValue + '.');
+            return defaultValue;
+        }
+    }
+
+    static float getFloat(String name, float defaultValue, float minValue, float maxValue) {
+        String value = System.getenv(name);
+        if (value == null) return defaultValue;
+        try {
+            float parsed = Float.parseFloat(value);
+            if (Float.isNaN(parsed)) throw new NumberFormatException();
+            if (parsed >= minValue && parsed <= maxValue) return parsed;
+            float limit = parsed < minValue ? minValue : maxValue;
+            System.out.println("* ERROR * Invalid value '" + value + "' for " + name + ", using " + limit + '.');
+            return limit;
+        } catch (NumberFormatException e) {
+            System.out.println("* ERROR * Invalid value '" + value + "' for " + name + ", using " + defaultValue + '.');
+            return defaultValue;
+        }
+    }
+}
@@ -1,33 +1,95 @@
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.firestore.*;
+import com.google.common.util.concurrent.MoreExecutors;
 import models.DetectedObject;
+import models.ProcessingMarker;
 import models.PubSubMessage;
 
 import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * The documents of the images processed at the same time are written together by a BulkWriter, which sends the writes
+ * in batches of up to 20 documents. The pending writes are sent every FIRESTORE_FLUSH_MILLIS milliseconds (20 by
+ * default), or as soon as there's a full batch, so each image waits at most that time for the writes of others.
+ * <p>
+ * With the environment variable FIRESTORE_COMPACT_LAYOUT set to 'true', the detected objects of an image are packed in
+ * its request document, see {@link CompactDetections}, and the detected objects collection only gets one thin document
+ * per object name, with the fields used by the searches, so an image costs a few writes instead of one per object.
+ */
 public class FirestoreOperations {
 
     private static Firestore db;
+    private static BulkWriter bulkWriter;
+    // The writes of the same image are added without the writes of others in between, so they fill fewer batches
+    private static final Object bulkWriterLock = new Object();
+    private static final AtomicBoolean pendingWrites = new AtomicBoolean();
     private static final String REQUESTS_COLLECTION = "Requests";
     private static final String DETECTED_OBJECTS_COLLECTION = "DetectedObjects";
+    private static final String PROCESSING_COLLECTION = "Processing";
+    // The markers are only needed while the messages can be delivered again, a TTL policy can delete them afterwards
+    private static final long MARKER_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final boolean COMPACT_LAYOUT = Boolean.parseBoolean(System.getenv("FIRESTORE_COMPACT_LAYOUT"));
 
     public static void initFirestore() {
         try {
             GoogleCredentials credentials = GoogleCredentials.getApplicationDefault();
             FirestoreOptions options = FirestoreOptions.newBuilder().setCredentials(credentials).build();
             db = options.getService();
+            bulkWriter = db.bulkWriter();
+            startFlushes();
         } catch (IOException e) {
             System.out.println("* ERROR * " + e.getMessage());
             e.printStackTrace();
         }
     }
 
+    private static void startFlushes() {
+        long flushMillis = Env.getLong("FIRESTORE_FLUSH_MILLIS", 20, 1);
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "firestore-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(() -> {
+            if (!pendingWrites.getAndSet(false)) return;
+            synchronized (bulkWriterLock) {
+                bulkWriter.flush();
+            }
+        }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the pending writes and waits for them, up to the timeout.
+     */
+    public static void flush(int timeoutSeconds) {
+        ApiFuture<Void> flushed;
+        synchronized (bulkWriterLock) {
+            flushed = bulkWriter.flush();
+        }
+        try {
+            flushed.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            System.out.println("* ERROR * Pending Firestore writes not flushed: " + e);
+        }
+    }
+
     public static void close() {
         try {
+            // Waits for the pending writes
+            bulkWriter.close();
             db.close();
         } catch (Exception e) {
             System.out.println("* ERROR * " + e.getMessage());
@@ -35,18 +97,29 @@ public class FirestoreOperations {
         }
     }
 
-    public static void setDetectedObjectsInfo(
+    /**
+     * Writes the request document and a document for each detected object.
+     * As these writes aren't atomic, the objects documents have ids derived from the request id, so a message processed
+     * again after an error overwrites the documents written before, instead of adding more. The request document is
+     * merged, as the gRPC server may have marked it as failed, e.g. when the inlined image couldn't be stored.
+     * @param annotatedBlob - name of the annotated image, or null if only the objects are stored, to be rendered later
+     * @return a future completed when all the documents are written
+     */
+    public static CompletableFuture<Void> setDetectedObjectsInfo(
             PubSubMessage message,
             String annotatedBlob,
             List<DetectedObject> detectedObjects
-    ) throws ExecutionException, InterruptedException {
-        WriteBatch batch = db.batch();
+    ) {
+        List<ApiFuture<WriteResult>> writes = new ArrayList<>(detectedObjects.size() + 1);
 
         // Create request document
         CollectionReference requestsCollectionRef = db.collection(REQUESTS_COLLECTION);
         DocumentReference requestsDocRef = requestsCollectionRef.document(message.getId());
 
         Timestamp timestamp = new Timestamp(System.currentTimeMillis());
+        // Summary of the detected objects kept in the request document, so it can be read without the objects documents
+        Map<String, Integer> objectsNames = DetectedObject.getObjectsAppearances(detectedObjects);
+        Map<String, Double> maxScores = DetectedObject.getObjectsMaxScores(detectedObjects);
         HashMap<String, Object> requestMap = new HashMap<>() {
             {
                 put("id", message.getId());
@@ -55,30 +128,207 @@ public class FirestoreOperations {
                 put("bucket", message.getBucket());
                 put("originalBlob", message.getBlob());
                 put("annotatedBlob", annotatedBlob);
+                put("analysisBlob", message.getAnalysisBlob());
                 put("detectedObjects", detectedObjects.size());
+                put("objectsNames", objectsNames);
+                put("objectsMaxScores", maxScores);
                 put("creationTimestamp", timestamp);
             }
         };
-        batch.set(requestsDocRef, requestMap);
 
         // Create detected objects documents
         CollectionReference objectsCollectionRef = db.collection(DETECTED_OBJECTS_COLLECTION);
 
-        detectedObjects.forEach(obj -> {
-            DocumentReference objectsDocRef = objectsCollectionRef.document();
-            HashMap<String, Object> objectMap = new HashMap<>() {
-                {
-                    put("objectName", obj.getName());
-                    put("score", obj.getScore());
-                    put("vertices", obj.getObjectVertices());
-                    put("requestId", message.getId());
-                    put("creationTimestamp", timestamp);
+        // Without the annotated image, the objects are stored in the request document to render it later
+        CompactDetections compact = null;
+        if (COMPACT_LAYOUT || annotatedBlob == null) {
+            compact = CompactDetections.encode(detectedObjects);
+            requestMap.put("objectsDictionary", compact.getDictionary());
+            requestMap.put("objectsDetections", Blob.fromBytes(compact.getDetections()));
+        }
+        if (COMPACT_LAYOUT) {
+            // The documents of the detected objects are found by the dictionary, without a query, in this layout
+            requestMap.put("objectsLayout", "compact");
+            synchronized (bulkWriterLock) {
+                writes.add(bulkWriter.set(requestsDocRef, requestMap, SetOptions.merge()));
+                // One document per object name, with its maximum score, is enough for the searches by name and score
+                List<String> dictionary = compact.getDictionary();
+                for (int code = 0; code < dictionary.size(); code++) {
+                    String objectName = dictionary.get(code);
+                    DocumentReference objectsDocRef = objectsCollectionRef.document(message.getId() + "_" + code);
+                    HashMap<String, Object> objectMap = new HashMap<>();
+                    objectMap.put("objectName", objectName);
+                    objectMap.put("score", maxScores.get(objectName));
+                    objectMap.put("requestMaxScore", maxScores.get(objectName));
+                    objectMap.put("requestId", message.getId());
+                    objectMap.put("creationTimestamp", timestamp);
+                    writes.add(bulkWriter.set(objectsDocRef, objectMap));
                 }
-            };
-            batch.set(objectsDocRef, objectMap);
-        });
+            }
+            pendingWrites.set(true);
+            return whenAllWritten(writes);
+        }
+
+        synchronized (bulkWriterLock) {
+            writes.add(bulkWriter.set(requestsDocRef, requestMap, SetOptions.merge()));
+            int index = 0;
+            for (DetectedObject obj : detectedObjects) {
+                DocumentReference objectsDocRef = objectsCollectionRef.document(message.getId() + "-" + index++);
+                HashMap<String, Object> objectMap = new HashMap<>() {
+                    {
+                        put("objectName", obj.getName());
+                        put("score", obj.getScore());
+                        put("requestMaxScore", maxScores.get(obj.getName())); // Used by the ranked search
+                        put("vertices", obj.getObjectVertices());
+                        put("requestId", message.getId());
+                        put("creationTimestamp", timestamp);
+                    }
+                };
+                writes.add(bulkWriter.set(objectsDocRef, objectMap));
+            }
+        }
+        pendingWrites.set(true);
+        return whenAllWritten(writes);
+    }
+
+    /**
+     * Claims the processing of a request, in a transaction, unless it's completed or claimed by another worker whose
+     * claim hasn't expired. The claim expires after the lease, so the request is processed by another worker if this
+     * one stops, and it's renewed by each stage finished. Each claim counts as an attempt to process the request.
+     * A released claim has no owner, see {@link #releaseClaim}.
+     * @return the marker of the request, with the last stage finished
+     */
+    public static CompletableFuture<ProcessingMarker> claimProcessing(
+            String requestId,
+            String owner,
+            long leaseMillis
+    ) {
+        DocumentReference markerRef = db.collection(PROCESSING_COLLECTION).document(requestId);
+        return toCompletableFuture(db.runTransaction(transaction -> {
+            DocumentSnapshot marker = transaction.get(markerRef).get();
+            long now = System.currentTimeMillis();
+            if (!marker.exists()) {
+                HashMap<String, Object> markerMap = new HashMap<>();
+                markerMap.put("stage", ProcessingMarker.Stage.CLAIMED.name());
+                markerMap.put("owner", owner);
+                markerMap.put("leaseExpires", now + leaseMillis);
+                markerMap.put("attempts", 1);
+                markerMap.put("expireAt", new Timestamp(now + MARKER_RETENTION_MILLIS));
+                transaction.create(markerRef, markerMap);
+                return new ProcessingMarker(ProcessingMarker.Stage.CLAIMED, null, false, 1);
+            }
 
-        // Waits if necessary for the computation to complete
-        batch.commit().get();
+            ProcessingMarker.Stage stage = ProcessingMarker.Stage.valueOf(marker.getString("stage"));
+            Blob response = marker.getBlob("response");
+            byte[] responseBytes = response != null ? response.toBytes() : null;
+            Long attempts = marker.getLong("attempts");
+            int previousAttempts = attempts != null ? attempts.intValue() : 0;
+            ProcessingMarker current = new ProcessingMarker(stage, responseBytes, false, previousAttempts);
+            if (current.isFinished()) return current;
+
+            String currentOwner = marker.getString("owner");
+            Long leaseExpires = marker.getLong("leaseExpires");
+            if (currentOwner != null && !owner.equals(currentOwner) && leaseExpires != null && leaseExpires > now) {
+                return new ProcessingMarker(stage, responseBytes, true, previousAttempts);
+            }
+            transaction.update(markerRef, "owner", owner, "leaseExpires", now + leaseMillis,
+                    "attempts", previousAttempts + 1);
+            return new ProcessingMarker(stage, responseBytes, false, previousAttempts + 1);
+        }));
+    }
+
+    /**
+     * Releases the claim of a request, if it's still held by the owner, so its message is processed by the next worker
+     * that receives it instead of waiting for the lease to expire.
+     * @param countAttempt - false if the processing didn't start, e.g. it was rejected, so its attempt is undone
+     */
+    public static CompletableFuture<Void> releaseClaim(String requestId, String owner, boolean countAttempt) {
+        DocumentReference markerRef = db.collection(PROCESSING_COLLECTION).document(requestId);
+        return toCompletableFuture(db.runTransaction(transaction -> {
+            DocumentSnapshot marker = transaction.get(markerRef).get();
+            if (!marker.exists() || !owner.equals(marker.getString("owner"))) return null;
+            HashMap<String, Object> markerMap = new HashMap<>();
+            markerMap.put("owner", FieldValue.delete());
+            markerMap.put("leaseExpires", System.currentTimeMillis());
+            Long attempts = marker.getLong("attempts");
+            if (!countAttempt && attempts != null) markerMap.put("attempts", Math.max(attempts - 1, 0));
+            transaction.update(markerRef, markerMap);
+            return null;
+        })).thenApply(result -> null);
+    }
+
+    /**
+     * Records the last stage finished of a request, with the response of the Vision API once it's known.
+     */
+    public static CompletableFuture<Void> setProcessingStage(
+            String requestId,
+            ProcessingMarker.Stage stage,
+            byte[] response,
+            long leaseMillis
+    ) {
+        DocumentReference markerRef = db.collection(PROCESSING_COLLECTION).document(requestId);
+        HashMap<String, Object> markerMap = new HashMap<>();
+        markerMap.put("stage", stage.name());
+        markerMap.put("leaseExpires", System.currentTimeMillis() + leaseMillis);
+        if (response != null) markerMap.put("response", Blob.fromBytes(response));
+
+        ApiFuture<WriteResult> write;
+        synchronized (bulkWriterLock) {
+            write = bulkWriter.set(markerRef, markerMap, SetOptions.merge());
+        }
+        pendingWrites.set(true);
+        return toCompletableFuture(write).thenApply(result -> null);
+    }
+
+    /**
+     * Records in the request document that its processing was given up, so the failure can be seen without the logs.
+     * Only the status, the error and the attempts of an existing document are written, keeping the results and the
+     * timestamp of a previous attempt; the document is created with the image information if the request failed
+     * before it was written.
+     */
+    public static CompletableFuture<Void> setRequestFailed(PubSubMessage message, String error, int attempts) {
+        DocumentReference requestsDocRef = db.collection(REQUESTS_COLLECTION).document(message.getId());
+        HashMap<String, Object> failureMap = new HashMap<>();
+        failureMap.put("status", "FAILED");
+        failureMap.put("error", error);
+        failureMap.put("attempts", attempts);
+
+        return toCompletableFuture(db.runTransaction(transaction -> {
+            if (transaction.get(requestsDocRef).get().exists()) {
+                transaction.update(requestsDocRef, failureMap);
+                return null;
+            }
+            HashMap<String, Object> requestMap = new HashMap<>(failureMap);
+            requestMap.put("id", message.getId());
+            requestMap.put("imageName", message.getImageName());
+            requestMap.put("imageType", message.getImageType());
+            requestMap.put("bucket", message.getBucket());
+            requestMap.put("originalBlob", message.getBlob());
+            requestMap.put("analysisBlob", message.getAnalysisBlob());
+            requestMap.put("detectedObjects", 0);
+            requestMap.put("creationTimestamp", new Timestamp(System.currentTimeMillis()));
+            transaction.create(requestsDocRef, requestMap);
+            return null;
+        })).thenApply(result -> null);
+    }
+
+    private static CompletableFuture<Void> whenAllWritten(List<ApiFuture<WriteResult>> writes) {
+        return toCompletableFuture(ApiFutures.allAsList(writes)).thenApply(results -> null);
+    }
+
+    private static <T> CompletableFuture<T> toCompletableFuture(ApiFuture<T> apiFuture) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        ApiFutures.addCallback(apiFuture, new ApiFutureCallback<>() {
+            @Override
+            public void onSuccess(T result) {
+                future.complete(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
     }
 }
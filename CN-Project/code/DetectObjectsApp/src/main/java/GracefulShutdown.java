@@ -0,0 +1,120 @@
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.Subscriber;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Drains the worker when the JVM is asked to stop, e.g. with a SIGTERM when the instance group is scaled down, so the
+ * images being processed aren't processed again by another instance:
+ * <ol>
+ *     <li>the subscribers stop pulling messages, and the messages received afterwards are nacked right away, to be
+ *     processed by the other instances;</li>
+ *     <li>the messages in process are given SHUTDOWN_GRACE_SECONDS seconds (30 by default) to finish;</li>
+ *     <li>the pending Firestore writes are flushed, so the messages whose documents are written are acked;</li>
+ *     <li>the claims of the messages still in process are released and the messages are nacked, their last stage
+ *     finished is recorded, so another instance continues them from there right away (see
+ *     {@link IdempotentProcessing}).</li>
+ * </ol>
+ */
+public class GracefulShutdown {
+    private static final int GRACE_SECONDS = Env.getInt("SHUTDOWN_GRACE_SECONDS", 30, 0);
+    private static final int FLUSH_SECONDS = 5;
+
+    private static final Set<TrackedReply> inProcess = ConcurrentHashMap.newKeySet();
+    private static volatile boolean draining;
+
+    public static void install(List<Subscriber> subscribers) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(subscribers), "graceful-shutdown"));
+    }
+
+    public static boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * @return the reply of the message, which is tracked until the message is acked or nacked
+     */
+    public static AckReplyConsumer track(AckReplyConsumer ackReplyConsumer, String requestId) {
+        TrackedReply reply = new TrackedReply(ackReplyConsumer, requestId);
+        inProcess.add(reply);
+        return reply;
+    }
+
+    private static void drain(List<Subscriber> subscribers) {
+        draining = true;
+        System.out.println("Shutting down, waiting for the " + inProcess.size() + " message(s) in process...");
+        subscribers.forEach(Subscriber::stopAsync);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(GRACE_SECONDS);
+        try {
+            while (!inProcess.isEmpty() && System.nanoTime() < deadline) Thread.sleep(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!inProcess.isEmpty()) {
+            FirestoreOperations.flush(FLUSH_SECONDS);
+            List<TrackedReply> left = new ArrayList<>(inProcess);
+            releaseClaims(left);
+            System.out.println("\t- Grace period ended, " + left.size() + " message(s) nacked.");
+            left.forEach(TrackedReply::nack);
+        }
+        // The acks and nacks are sent before the subscribers terminate
+        for (Subscriber subscriber : subscribers) {
+            try {
+                subscriber.awaitTerminated(FLUSH_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                System.out.println("* ERROR * The subscriber didn't stop in " + FLUSH_SECONDS + " seconds.");
+            }
+        }
+        FirestoreOperations.close();
+        System.out.println("Detect Objects App stopped.");
+    }
+
+    /**
+     * Otherwise the requests of the nacked messages would be busy for the other instances until the lease expires.
+     */
+    private static void releaseClaims(List<TrackedReply> replies) {
+        CompletableFuture<?>[] releases = replies.stream()
+                .map(reply -> IdempotentProcessing.release(reply.requestId))
+                .toArray(CompletableFuture[]::new);
+        try {
+            CompletableFuture.allOf(releases).get(FLUSH_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            System.out.println("* ERROR * The claims of the messages in process weren't all released: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class TrackedReply implements AckReplyConsumer {
+        private final AckReplyConsumer ackReplyConsumer;
+        private final String requestId;
+        private final AtomicBoolean replied = new AtomicBoolean();
+
+        private TrackedReply(AckReplyConsumer ackReplyConsumer, String requestId) {
+            this.ackReplyConsumer = ackReplyConsumer;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public void ack() {
+            if (replied.getAndSet(true)) return;
+            inProcess.remove(this);
+            ackReplyConsumer.ack();
+        }
+
+        @Override
+        public void nack() {
+            if (replied.getAndSet(true)) return;
+            inProcess.remove(this);
+            ackReplyConsumer.nack();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import models.ProcessingMarker;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Processes each request id once, even though the Pub/Sub delivers each message at least once:
+ * <ul>
+ *     <li>the ids of the requests recently completed by this worker are kept in memory, IDEMPOTENCY_CACHE_SIZE ids
+ *     (10000 by default), so their messages are acked without any request;</li>
+ *     <li>a message delivered again while its request is being processed by this worker waits for that processing;</li>
+ *     <li>otherwise the request is claimed in the Firestore, where the last stage finished of each request is
+ *     recorded, so a completed request isn't processed again and a request left unfinished is processed from the last
+ *     stage finished. The claim of a worker expires after PROCESSING_LEASE_SECONDS seconds (600 by default) without
+ *     finishing a stage, and the messages of the requests claimed by other workers are delivered again later. The
+ *     claim is only held while the request is processed: it's released when the processing fails, and before the
+ *     message is nacked, so the next delivery is processed right away.</li>
+ * </ul>
+ */
+public class IdempotentProcessing {
+    private static final int CACHE_SIZE = Env.getInt("IDEMPOTENCY_CACHE_SIZE", 10_000, 1);
+    private static final long LEASE_MILLIS = TimeUnit.SECONDS.toMillis(Env.getInt("PROCESSING_LEASE_SECONDS", 600, 1));
+    private static final String WORKER_ID = UUID.randomUUID().toString();
+
+    private static final Map<String, Boolean> completedIds = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            }
+    );
+    private static final Map<String, CompletableFuture<Outcome>> inFlight = new ConcurrentHashMap<>();
+
+    public enum Outcome {
+        PROCESSED, // Processed by this delivery, the message can be acked
+        DUPLICATE, // Already processed, the message can be acked
+        BUSY,      // Being processed by another worker, the message should be delivered again later
+        OVERLOADED // Rejected by a full stage of the pipeline, the message should be delivered again later
+    }
+
+    /**
+     * Error of the processing of a request, with the number of attempts to process it so far.
+     */
+    public static class Failure extends RuntimeException {
+        private final int attempts;
+
+        private Failure(Throwable cause, int attempts) {
+            super(cause.getMessage(), cause);
+            this.attempts = attempts;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+
+    /**
+     * @param processing - processes the request from the stage after the last one finished in the marker
+     * @return a future completed with the outcome once the message can be acked or nacked, and the errors of the
+     * processing are {@link Failure}s
+     */
+    public static CompletableFuture<Outcome> process(
+            String requestId,
+            Function<ProcessingMarker, CompletableFuture<Void>> processing
+    ) {
+        if (completedIds.containsKey(requestId)) return CompletableFuture.completedFuture(Outcome.DUPLICATE);
+
+        CompletableFuture<Outcome> outcome = new CompletableFuture<>();
+        CompletableFuture<Outcome> running = inFlight.putIfAbsent(requestId, outcome);
+        if (running != null) {
+            return running.thenApply(result -> result == Outcome.PROCESSED ? Outcome.DUPLICATE : result);
+        }
+
+        AtomicBoolean claimed = new AtomicBoolean();
+        FirestoreOperations.claimProcessing(requestId, WORKER_ID, LEASE_MILLIS)
+                .thenCompose(marker -> {
+                    if (marker.isFinished()) return CompletableFuture.completedFuture(Outcome.DUPLICATE);
+                    if (marker.isBusy()) return CompletableFuture.completedFuture(Outcome.BUSY);
+                    claimed.set(true);
+                    return processing.apply(marker)
+                            .handle((processed, error) -> {
+                                if (error != null) throw new Failure(error, marker.getAttempts());
+                                return processed;
+                            })
+                            .thenCompose(processed -> complete(requestId));
+                })
+                .handle((result, error) -> {
+                    if (error == null) return CompletableFuture.completedFuture(result);
+                    CompletableFuture<Outcome> failed = CompletableFuture.failedFuture(error);
+                    // The message is nacked or given up, so the claim isn't needed anymore
+                    if (!claimed.get()) return failed;
+                    // A processing rejected by a full stage isn't a failure of the request, nor counted as an attempt
+                    if (isRejected(error)) return release(requestId, false).thenApply(released -> Outcome.OVERLOADED);
+                    return release(requestId, true).thenCompose(released -> failed);
+                })
+                .thenCompose(result -> result)
+                .whenComplete((result, error) -> {
+                    if (error == null && (result == Outcome.PROCESSED || result == Outcome.DUPLICATE)) {
+                        completedIds.put(requestId, Boolean.TRUE);
+                    }
+                    inFlight.remove(requestId);
+                    if (error == null) outcome.complete(result);
+                    else outcome.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                });
+        return outcome;
+    }
+
+    /**
+     * Releases the claim of this worker on the request, if it has it, e.g. before its message is nacked. The errors
+     * are only logged, as the claim still expires after the lease.
+     */
+    public static CompletableFuture<Void> release(String requestId) {
+        return release(requestId, true);
+    }
+
+    private static CompletableFuture<Void> release(String requestId, boolean countAttempt) {
+        return FirestoreOperations.releaseClaim(requestId, WORKER_ID, countAttempt)
+                .exceptionally(error -> {
+                    System.out.println("* ERROR * Claim of the request with id '" + requestId + "' not released: " +
+                            error.getMessage());
+                    return null;
+                });
+    }
+
+    /**
+     * Records the stage finished, the errors are only logged, as they only mean that more stages are done again if
+     * the message is delivered again.
+     */
+    public static CompletableFuture<Void> recordStage(String requestId, ProcessingMarker.Stage stage, byte[] response) {
+        return FirestoreOperations.setProcessingStage(requestId, stage, response, LEASE_MILLIS)
+                .exceptionally(error -> {
+                    System.out.println("* ERROR * Stage " + stage + " of the request with id '" + requestId +
+                            "' not recorded: " + error.getMessage());
+                    return null;
+                });
+    }
+
+    private static boolean isRejected(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RejectedExecutionException) return true;
+        }
+        return false;
+    }
+
+    private static CompletableFuture<Outcome> complete(String requestId) {
+        return recordStage(requestId, ProcessingMarker.Stage.COMPLETED, null).thenApply(recorded -> Outcome.PROCESSED);
+    }
+}
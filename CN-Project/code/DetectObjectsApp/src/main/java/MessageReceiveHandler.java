@@ -1,15 +1,18 @@
 import com.google.cloud.pubsub.v1.AckReplyConsumer;
 import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.cloud.pubsub.v1.Subscriber;
 import com.google.cloud.storage.Storage;
+import com.google.protobuf.util.Timestamps;
 import com.google.pubsub.v1.PubsubMessage;
 import models.PubSubMessage;
+import tracing.Span;
+import tracing.Tracer;
 
-import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletionException;
 
 public class MessageReceiveHandler implements MessageReceiver {
-
     private final Storage storage;
 
     public MessageReceiveHandler(Storage storage) {
@@ -17,25 +20,88 @@ public class MessageReceiveHandler implements MessageReceiver {
     }
 
     @Override
-    public void receiveMessage(PubsubMessage pubsubMessage, AckReplyConsumer ackReplyConsumer) {
-        String id = pubsubMessage.getData().toStringUtf8();
+    public void receiveMessage(PubsubMessage pubsubMessage, AckReplyConsumer reply) {
+        // The messages received while shutting down are left to the other instances
+        if (GracefulShutdown.isDraining()) {
+            reply.nack();
+            return;
+        }
+        Map<String, String> attributesMap = pubsubMessage.getAttributesMap();
+        // Small images are sent in the data of the message, otherwise the data is the request id
+        boolean inline = "true".equals(attributesMap.get("inline"));
+        String id = attributesMap.containsKey("id") ? attributesMap.get("id") : pubsubMessage.getData().toStringUtf8();
         System.out.println("Request received with id: " + id);
+        AckReplyConsumer ackReplyConsumer = GracefulShutdown.track(reply, id);
 
-        Map<String, String> attributesMap = pubsubMessage.getAttributesMap();
         String imageName = attributesMap.get("imageName");
         String imageType = attributesMap.get("imageType");
         String bucket = attributesMap.get("bucket");
         String blob = attributesMap.get("blob");
+        String analysisBlob = attributesMap.get("analysisBlob");
+
+        PubSubMessage message = new PubSubMessage(
+                id, imageName, imageType, bucket, blob, analysisBlob, inline ? pubsubMessage.getData() : null
+        );
 
-        PubSubMessage message = new PubSubMessage(id, imageName, imageType, bucket, blob);
+        // Continues the trace of the upload that published the message, starting with the time it waited in the topic
+        String traceParent = attributesMap.get(Tracer.TRACE_PARENT);
+        long publishTime = Timestamps.toMillis(pubsubMessage.getPublishTime());
+        long receiveTime = System.currentTimeMillis();
+        Tracer.recordSpan("queue-wait", traceParent, publishTime, receiveTime);
+        WorkerMetrics.messageReceived(receiveTime - publishTime);
+        Span processSpan = Tracer.startSpan("process", traceParent).setAttribute("requestId", id);
 
-        try {
-            Vision.detectLocalizedObjectsGcs(storage, message);
-            ackReplyConsumer.ack();
-        } catch (ExecutionException | InterruptedException | IOException e) {
-            ackReplyConsumer.nack();
-            System.out.println("Error in detectLocalizedObjectsGcs of Vision class: " + e.getMessage());
-            e.printStackTrace();
+        // The message is acked, or nacked, by the thread of the last stage it reaches
+        IdempotentProcessing.process(id, marker -> DetectionPipeline.process(storage, message, processSpan, marker))
+                .whenComplete((outcome, error) -> {
+                    if (error != null) {
+                        Throwable cause = getCause(error);
+                        processSpan.setAttribute("error", cause.getMessage());
+                        System.out.println("Error processing the request with id '" + id + "': " + cause.getMessage());
+                        cause.printStackTrace();
+                        int attempts = getAttempts(error, pubsubMessage);
+                        RetryScheduler.onFailure(pubsubMessage, message, cause, attempts, ackReplyConsumer);
+                    } else if (outcome == IdempotentProcessing.Outcome.BUSY) {
+                        // Delivered again after the backoff of the subscription, without holding the message meanwhile
+                        ackReplyConsumer.nack();
+                        System.out.println("\t- Request with id '" + id + "' is being processed by another worker, " +
+                                "it will be delivered again after a backoff.");
+                    } else if (outcome == IdempotentProcessing.Outcome.OVERLOADED) {
+                        ackReplyConsumer.nack();
+                        System.out.println("\t- Request with id '" + id + "' rejected by a full pipeline stage, " +
+                                "it will be delivered again after a backoff.");
+                    } else {
+                        ackReplyConsumer.ack();
+                        if (outcome == IdempotentProcessing.Outcome.DUPLICATE) {
+                            System.out.println("\t- Request with id '" + id + "' already processed, message acked.");
+                        }
+                    }
+                    WorkerMetrics.messageFinished(outcome);
+                    processSpan.setAttribute("outcome", outcome != null ? outcome.name() : "ERROR");
+                    processSpan.end();
+                });
+    }
+
+    /**
+     * The errors of the stages are wrapped in unchecked exceptions by the pipeline.
+     */
+    private static Throwable getCause(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof UncheckedIOException ||
+                error instanceof IdempotentProcessing.Failure) && error.getCause() != null) {
+            error = error.getCause();
         }
+        return error;
+    }
+
+    /**
+     * The attempts are counted in the request marker once it's claimed. If the claim itself failed, e.g. with the
+     * Firestore unavailable, the deliveries of the message counted by the subscription are used instead, so the
+     * message isn't retried forever.
+     */
+    private static int getAttempts(Throwable error, PubsubMessage pubsubMessage) {
+        if (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        if (error instanceof IdempotentProcessing.Failure) return ((IdempotentProcessing.Failure) error).getAttempts();
+        Integer deliveryAttempt = Subscriber.getDeliveryAttempt(pubsubMessage);
+        return deliveryAttempt != null ? deliveryAttempt : 0;
     }
 }
@@ -0,0 +1,54 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * HTTP endpoint '/metrics' that exposes the metrics of the application in the Prometheus text format.
+ * It's only started when the environment variable with the port to listen on is defined.
+ */
+public class MetricsEndpoint {
+    private static final List<Consumer<StringBuilder>> sources = new CopyOnWriteArrayList<>();
+
+    public static void register(Consumer<StringBuilder> source) {
+        sources.add(source);
+    }
+
+    /**
+     * @param portEnv - name of the environment variable with the port
+     */
+    public static void start(String portEnv) throws IOException {
+        // 0 when the variable isn't defined, and the endpoint isn't started
+        int port = Env.getInt(portEnv, 0, 0, 65535);
+        if (port == 0) return;
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            StringBuilder metrics = new StringBuilder();
+            sources.forEach(source -> source.accept(metrics));
+            byte[] body = metrics.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("Metrics available on port " + port + " at '/metrics'.");
+    }
+
+    public static void gauge(StringBuilder metrics, String name, double value) {
+        metrics.append("# TYPE ").append(name).append(" gauge\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    public static void counter(StringBuilder metrics, String name, double value) {
+        metrics.append("# TYPE ").append(name).append(" counter\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+}
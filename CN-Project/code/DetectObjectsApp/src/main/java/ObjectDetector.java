@@ -0,0 +1,33 @@
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import models.ImageContent;
+import models.PubSubMessage;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Detects the objects of the images of the messages. The backend is chosen with the environment variable
+ * OBJECT_DETECTOR:
+ * <ul>
+ *     <li>'vision' (default): the Vision API, see {@link VisionObjectDetector};</li>
+ *     <li>'synthetic': reproducible detections generated locally, without the Vision API, to measure the throughput
+ *     of the rest of the processing, see {@link SyntheticObjectDetector}.</li>
+ * </ul>
+ */
+public interface ObjectDetector {
+
+    /**
+     * @param image - content of the image, or null if it wasn't fetched
+     * @return the future response, with the localized objects, or completed exceptionally if the detection failed
+     */
+    CompletableFuture<AnnotateImageResponse> detect(PubSubMessage message, ImageContent image);
+
+    static ObjectDetector fromEnv() throws IOException {
+        String detector = System.getenv("OBJECT_DETECTOR");
+        if ("synthetic".equalsIgnoreCase(detector)) return SyntheticObjectDetector.fromEnv();
+        if (detector != null && !"vision".equalsIgnoreCase(detector)) {
+            System.out.println("* ERROR * Invalid value '" + detector + "' for OBJECT_DETECTOR, using vision.");
+        }
+        return VisionObjectDetector.start();
+    }
+}
@@ -0,0 +1,149 @@
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads a blob while its content is written, e.g. while an image is encoded: the bytes written to the output
+ * stream are passed, in blocks, to a task that writes them to the Cloud Storage from another executor.
+ * The blob is only created if the output stream is completed, when it's aborted or the writing fails, the upload is
+ * left unfinished and no blob is created.
+ * The size of the chunks uploaded by the storage write channel can be set with the environment variable
+ * GCS_UPLOAD_CHUNK_BYTES, in multiples of 256KB, 15MB by default.
+ */
+public class PipedUpload {
+    private static final int BLOCK_BYTES = 64 * 1024;
+    private static final int MAX_PENDING_BLOCKS = 16; // Up to 1MB waiting for the upload
+    // The default chunk size of the storage write channel
+    private static final int CHUNK_BYTES = Env.getInt("GCS_UPLOAD_CHUNK_BYTES", 15 * 1024 * 1024, 256 * 1024);
+    // Markers of the end of the content, compared by reference
+    private static final ByteBuffer COMPLETED = ByteBuffer.allocate(0);
+    private static final ByteBuffer ABORTED = ByteBuffer.allocate(0);
+
+    private final BlockingQueue<ByteBuffer> blocks = new ArrayBlockingQueue<>(MAX_PENDING_BLOCKS);
+    private final CompletableFuture<Void> uploaded;
+    private final Output output = new Output();
+    private volatile boolean failed;
+
+    private PipedUpload(Storage storage, BlobInfo blobInfo, Executor executor) {
+        this.uploaded = CompletableFuture.runAsync(() -> upload(storage, blobInfo), executor);
+    }
+
+    public static PipedUpload start(Storage storage, BlobInfo blobInfo, Executor executor) {
+        return new PipedUpload(storage, blobInfo, executor);
+    }
+
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Ends the content of the blob, which is created once the upload ends.
+     * @return a future completed when the blob is created
+     */
+    public CompletableFuture<Void> complete() throws IOException {
+        output.flushBlock();
+        put(COMPLETED);
+        return uploaded;
+    }
+
+    /**
+     * Discards the upload after an error writing the content.
+     */
+    public void abort() {
+        blocks.clear();
+        blocks.offer(ABORTED);
+    }
+
+    private void upload(Storage storage, BlobInfo blobInfo) {
+        try {
+            WriteChannel writer = storage.writer(blobInfo);
+            writer.setChunkSize(CHUNK_BYTES);
+            while (true) {
+                ByteBuffer block = blocks.take();
+                if (block == ABORTED) {
+                    throw new IOException("The content of the blob '" + blobInfo.getName() + "' wasn't completed.");
+                }
+                // The blob is only created when the channel is closed
+                if (block == COMPLETED) {
+                    writer.close();
+                    return;
+                }
+                while (block.hasRemaining()) writer.write(block);
+            }
+        } catch (IOException e) {
+            fail();
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            fail();
+            throw e;
+        } catch (InterruptedException e) {
+            fail();
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Frees the writer, if it's waiting for space for a block.
+     */
+    private void fail() {
+        failed = true;
+        blocks.clear();
+    }
+
+    /**
+     * Waits for space for the block, unless the upload failed, in which case the writing fails as well.
+     */
+    private void put(ByteBuffer block) throws IOException {
+        try {
+            while (!blocks.offer(block, 100, TimeUnit.MILLISECONDS)) {
+                if (failed) throw new IOException("The upload failed.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the upload.", e);
+        }
+        if (failed) throw new IOException("The upload failed.");
+    }
+
+    private class Output extends OutputStream {
+        private byte[] block = new byte[BLOCK_BYTES];
+        private int size;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == block.length) flushBlock();
+            block[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == block.length) flushBlock();
+                int n = Math.min(len, block.length - size);
+                System.arraycopy(b, off, block, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (size == 0) return;
+            put(ByteBuffer.wrap(block, 0, size));
+            block = new byte[BLOCK_BYTES];
+            size = 0;
+        }
+    }
+}
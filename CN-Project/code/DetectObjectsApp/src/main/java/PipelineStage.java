@@ -0,0 +1,73 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stage of the detection pipeline, with its own threads and bounded queue of pending tasks.
+ * The thread submitting a task never waits: when the queue is full the task is rejected, so the future of its message
+ * fails and the message is nacked, without counting it as a failed attempt (see {@link IdempotentProcessing}), instead
+ * of blocking a thread of the previous stage, or of the Vision API client, that may be the one the stage is waiting
+ * for.
+ */
+public class PipelineStage implements Executor {
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong completedTasks = new AtomicLong();
+    private final AtomicLong serviceNanos = new AtomicLong();
+
+    public PipelineStage(String name, int threads, int queueCapacity) {
+        this.name = name;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, pool) -> {
+                    throw new RejectedExecutionException("The stage '" + name + "' is full.");
+                }
+        );
+    }
+
+    /**
+     * Runs the task in this stage, measuring its service time, i.e. without the time it waited in the queue.
+     */
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                serviceNanos.addAndGet(System.nanoTime() - start);
+                completedTasks.incrementAndGet();
+            }
+        });
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveThreads() {
+        return executor.getActiveCount();
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks.get();
+    }
+
+    public double getServiceSeconds() {
+        return serviceNanos.get() / 1e9;
+    }
+}
@@ -0,0 +1,175 @@
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.pubsub.v1.PubsubMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares the processing of the worker between the interactive uploads and the bulk uploads, e.g. backfills, which
+ * arrive in their own subscription, with the 'priority' attribute set to 'bulk'.
+ * At most LANE_CONCURRENCY messages (the maximum outstanding messages of a subscriber by default) are processed at a
+ * time, and the others wait in the queue of their lane. When a message finishes, the next one is taken from the lanes
+ * with a smooth weighted round-robin, with the weights INTERACTIVE_LANE_WEIGHT (80 by default) and BULK_LANE_WEIGHT
+ * (20 by default), so the interactive uploads aren't held back by a backfill, which still makes progress. A lane
+ * without messages waiting leaves its share to the other one.
+ * The messages waiting while the application shuts down are nacked, to be processed by the other instances.
+ */
+public class PriorityLanes implements MessageReceiver {
+    public enum Lane {
+        INTERACTIVE, BULK
+    }
+
+    private static final int CONCURRENCY = Env.getInt("LANE_CONCURRENCY", (int) PubSub.MAX_OUTSTANDING_MESSAGES, 1);
+    private static final int[] WEIGHTS = {
+            Env.getInt("INTERACTIVE_LANE_WEIGHT", 80, 1), Env.getInt("BULK_LANE_WEIGHT", 20, 1)
+    };
+
+    private final MessageReceiver receiver;
+    private final List<ArrayDeque<Pending>> queues = List.of(new ArrayDeque<>(), new ArrayDeque<>());
+    private final int[] credits = new int[WEIGHTS.length];
+    private int available = CONCURRENCY;
+    // The messages are handed to the receiver by these threads, not by the ones that release the previous messages
+    private final ExecutorService dispatcher;
+
+    private static class Pending {
+        private final PubsubMessage message;
+        private final AckReplyConsumer reply;
+
+        private Pending(PubsubMessage message, AckReplyConsumer reply) {
+            this.message = message;
+            this.reply = reply;
+        }
+    }
+
+    public PriorityLanes(MessageReceiver receiver) {
+        this.receiver = receiver;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.dispatcher = Executors.newFixedThreadPool(PubSub.EXECUTOR_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "lanes-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        System.out.println("\t- Processing up to " + CONCURRENCY + " messages, " + WEIGHTS[Lane.INTERACTIVE.ordinal()] +
+                "/" + WEIGHTS[Lane.BULK.ordinal()] + " between the interactive and the bulk uploads.");
+    }
+
+    private static Lane getLane(PubsubMessage message) {
+        return "bulk".equals(message.getAttributesMap().get("priority")) ? Lane.BULK : Lane.INTERACTIVE;
+    }
+
+    @Override
+    public void receiveMessage(PubsubMessage message, AckReplyConsumer reply) {
+        if (GracefulShutdown.isDraining()) {
+            reply.nack();
+            return;
+        }
+        synchronized (this) {
+            queues.get(getLane(message).ordinal()).add(new Pending(message, reply));
+        }
+        dispatch();
+    }
+
+    public void writeMetrics(StringBuilder metrics) {
+        metrics.append("# TYPE detectobjects_lane_queued gauge\n");
+        synchronized (this) {
+            for (Lane lane : Lane.values()) {
+                metrics.append("detectobjects_lane_queued{lane=\"").append(lane.name().toLowerCase()).append("\"} ")
+                        .append(queues.get(lane.ordinal()).size()).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Hands the next messages to the receiver while there are free slots, or nacks the messages waiting if the
+     * application is shutting down.
+     */
+    private void dispatch() {
+        List<Pending> next = new ArrayList<>();
+        List<Pending> nacked = new ArrayList<>();
+        synchronized (this) {
+            if (GracefulShutdown.isDraining()) {
+                queues.forEach(queue -> {
+                    nacked.addAll(queue);
+                    queue.clear();
+                });
+            }
+            while (available > 0) {
+                Lane lane = nextLane();
+                if (lane == null) break;
+                available--;
+                next.add(queues.get(lane.ordinal()).poll());
+            }
+        }
+        nacked.forEach(pending -> pending.reply.nack());
+        for (Pending pending : next) {
+            dispatcher.execute(() -> {
+                ReleasingReply reply = new ReleasingReply(pending.reply);
+                try {
+                    receiver.receiveMessage(pending.message, reply);
+                } catch (RuntimeException e) {
+                    System.out.println("* ERROR * Unexpected error processing a message: " + e);
+                    e.printStackTrace();
+                    reply.nack();
+                }
+            });
+        }
+    }
+
+    /**
+     * Smooth weighted round-robin: each lane with messages waiting earns its weight, and the lane with the most credits
+     * is chosen and pays the weights earned in this round, so the lanes are interleaved instead of served in bursts.
+     * @return the lane of the next message, or null if no message is waiting
+     */
+    private Lane nextLane() {
+        Lane chosen = null;
+        int earned = 0;
+        for (Lane lane : Lane.values()) {
+            if (queues.get(lane.ordinal()).isEmpty()) continue;
+            credits[lane.ordinal()] += WEIGHTS[lane.ordinal()];
+            earned += WEIGHTS[lane.ordinal()];
+            if (chosen == null || credits[lane.ordinal()] > credits[chosen.ordinal()]) chosen = lane;
+        }
+        if (chosen != null) credits[chosen.ordinal()] -= earned;
+        return chosen;
+    }
+
+    private synchronized void release() {
+        available++;
+    }
+
+    /**
+     * Frees the slot of the message once it's acked or nacked, and takes the next message.
+     */
+    private class ReleasingReply implements AckReplyConsumer {
+        private final AckReplyConsumer ackReplyConsumer;
+        private final AtomicBoolean replied = new AtomicBoolean();
+
+        private ReleasingReply(AckReplyConsumer ackReplyConsumer) {
+            this.ackReplyConsumer = ackReplyConsumer;
+        }
+
+        @Override
+        public void ack() {
+            ackReplyConsumer.ack();
+            finish();
+        }
+
+        @Override
+        public void nack() {
+            ackReplyConsumer.nack();
+            finish();
+        }
+
+        private void finish() {
+            if (replied.getAndSet(true)) return;
+            release();
+            dispatch();
+        }
+    }
+}
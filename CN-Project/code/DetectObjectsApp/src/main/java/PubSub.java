@@ -1,58 +1,218 @@
+import com.google.api.gax.batching.FlowControlSettings;
+import com.google.api.gax.batching.FlowController;
 import com.google.api.gax.core.ExecutorProvider;
 import com.google.api.gax.core.InstantiatingExecutorProvider;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.NotFoundException;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.cloud.pubsub.v1.Publisher;
 import com.google.cloud.pubsub.v1.Subscriber;
 import com.google.cloud.pubsub.v1.SubscriptionAdminClient;
+import com.google.cloud.pubsub.v1.TopicAdminClient;
 import com.google.cloud.storage.Storage;
+import com.google.protobuf.FieldMask;
 import com.google.pubsub.v1.*;
 
+import com.google.common.util.concurrent.MoreExecutors;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class PubSub {
     private static final String TOPIC = "detectionworkers";
     private static final String WORKERS_SUBSCRIPTION = "workers";
+    // The bulk uploads, e.g. backfills, are published to their own topic, see PriorityLanes
+    private static final String BULK_TOPIC = "detectionworkers-bulk";
+    private static final String BULK_WORKERS_SUBSCRIPTION = "workers-bulk";
+    private static final String DEAD_LETTER_TOPIC = "detectionworkers-deadletter";
+    private static Publisher deadLetterPublisher;
+
+    // The processing of a message mostly waits for the Vision API, the Cloud Storage and the Firestore, so there are
+    // more threads than cores to keep them busy
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    static final int EXECUTOR_THREADS = Env.getInt("SUBSCRIBER_EXECUTOR_THREADS", 2 * CORES, 1);
+    static final int PARALLEL_PULL_COUNT = Env.getInt("SUBSCRIBER_PARALLEL_PULL_COUNT", 1, 1);
+    // Each outstanding message may have a decoded image in memory, so only a few more messages than threads are
+    // leased, leaving the others to the remaining instances
+    static final long MAX_OUTSTANDING_MESSAGES =
+            Env.getInt("SUBSCRIBER_MAX_OUTSTANDING_MESSAGES", 2 * EXECUTOR_THREADS, 1);
+    static final long MAX_OUTSTANDING_BYTES = Env.getLong(
+            "SUBSCRIBER_MAX_OUTSTANDING_BYTES", Runtime.getRuntime().maxMemory() / 8, 1
+    );
 
     /**
      *  Verifies if the subscripion already exists in the topic, if it doesn't, the subscription is created.
-     *  The correspondent topic must exist already.
+     *  The subscription is read directly, instead of listing all the subscriptions of the project, so the startup
+     *  doesn't grow with the number of subscriptions. The correspondent topic must exist already.
+     *  The subscription backs off the redelivery of the nacked messages, see {@link RetryScheduler}, and dead-letters
+     *  the messages delivered too many times, which also makes it count the delivery attempts of each message. The
+     *  policies of an existing subscription are updated if they are different.
      */
-    private static void initSubscription(String projectId) throws IOException {
-        try (SubscriptionAdminClient subscriptionAdminClient = SubscriptionAdminClient.create()) {
-
-            // Verify if the subscription already exists
-            SubscriptionAdminClient.ListSubscriptionsPagedResponse res =
-                    subscriptionAdminClient.listSubscriptions(ProjectName.of(projectId));
-            for (Subscription sub : res.iterateAll()) {
-                String[] subPath = sub.getName().split("/"); // projects/cn2122-t2-g09/subscriptions/workers
-                if (subPath[subPath.length - 1].compareTo(WORKERS_SUBSCRIPTION) == 0) return;
+    private static void initSubscription(
+            SubscriptionAdminClient subscriptionAdminClient,
+            String projectId,
+            String subscription,
+            String topic
+    ) {
+        SubscriptionName subscriptionName = SubscriptionName.of(projectId, subscription);
+        RetryPolicy retryPolicy = RetryScheduler.getRetryPolicy();
+        DeadLetterPolicy deadLetterPolicy = DeadLetterPolicy.newBuilder()
+                .setDeadLetterTopic(TopicName.of(projectId, DEAD_LETTER_TOPIC).toString())
+                .setMaxDeliveryAttempts(RetryScheduler.MAX_DELIVERY_ATTEMPTS)
+                .build();
+        try {
+            Subscription current = subscriptionAdminClient.getSubscription(subscriptionName);
+            if (!current.getRetryPolicy().equals(retryPolicy) ||
+                    !current.getDeadLetterPolicy().equals(deadLetterPolicy)) {
+                updatePolicies(subscriptionAdminClient, current, retryPolicy, deadLetterPolicy);
             }
+            return;
+        } catch (NotFoundException e) {
+            // Created below
+        }
+
+        System.out.println("\t- Creating subscription '" + subscription + "'...");
+        PushConfig pconfig = PushConfig.getDefaultInstance();
+        TopicName tName = TopicName.ofProjectTopicName(projectId, topic);
+        subscriptionAdminClient.createSubscription(Subscription.newBuilder()
+                .setName(subscriptionName.toString())
+                .setTopic(tName.toString())
+                .setPushConfig(pconfig)
+                .setAckDeadlineSeconds(30)
+                .setRetryPolicy(retryPolicy)
+                .setDeadLetterPolicy(deadLetterPolicy)
+                .build());
+
+        System.out.println("\t- Subscription '" + subscription + "' successfully created in topic '" +
+                topic + "' of the project '" + projectId + "'.");
+    }
 
-            // If it doesn't exist, creates the subscription
-            System.out.println("\t- Creating subscription '" + WORKERS_SUBSCRIPTION + "'...");
-            PushConfig pconfig = PushConfig.getDefaultInstance();
-            TopicName tName = TopicName.ofProjectTopicName(projectId, TOPIC);
-            SubscriptionName subscriptionName = SubscriptionName.of(projectId, WORKERS_SUBSCRIPTION);
-            subscriptionAdminClient.createSubscription(subscriptionName, tName, pconfig, 30);
+    /**
+     * Without the policies, e.g. if the update isn't allowed, the nacked messages are delivered again right away and
+     * their delivery attempts aren't counted, so the failure is only logged.
+     */
+    private static void updatePolicies(
+            SubscriptionAdminClient subscriptionAdminClient,
+            Subscription subscription,
+            RetryPolicy retryPolicy,
+            DeadLetterPolicy deadLetterPolicy
+    ) {
+        System.out.println("\t- Updating the retry policies of the subscription '" + subscription.getName() + "'...");
+        try {
+            subscriptionAdminClient.updateSubscription(UpdateSubscriptionRequest.newBuilder()
+                    .setSubscription(subscription.toBuilder()
+                            .setRetryPolicy(retryPolicy)
+                            .setDeadLetterPolicy(deadLetterPolicy))
+                    .setUpdateMask(FieldMask.newBuilder()
+                            .addPaths("retry_policy")
+                            .addPaths("dead_letter_policy"))
+                    .build());
+        } catch (ApiException e) {
+            System.out.println("* ERROR * Retry policies of the subscription '" + subscription.getName() +
+                    "' not updated: " + e.getMessage());
+        }
+    }
 
-            System.out.println("\t- Subscription '" + WORKERS_SUBSCRIPTION + "' successfully created in topic '" +
-                    TOPIC + "' of the project '" + projectId + "'.");
+    /**
+     * Creates the topic where the messages that can't be processed are published, if it doesn't exist, and its
+     * publisher. The messages of the topic can be inspected, and published again to the workers topic once the
+     * cause of their failure is fixed.
+     */
+    private static void initDeadLetterTopic(String projectId) throws IOException {
+        TopicName topicName = TopicName.of(projectId, DEAD_LETTER_TOPIC);
+        try (TopicAdminClient topicAdmin = TopicAdminClient.create()) {
+            try {
+                topicAdmin.getTopic(topicName);
+            } catch (NotFoundException e) {
+                System.out.println("\t- Creating topic '" + DEAD_LETTER_TOPIC + "'...");
+                topicAdmin.createTopic(topicName);
+            }
         }
+        deadLetterPublisher = Publisher.newBuilder(topicName).build();
+    }
+
+    /**
+     * Publishes a message that can't be processed to the dead letter topic, with the error and the attempts made.
+     * Without the dead letter topic, e.g. in the embedded mode, the failure is only recorded in the Firestore.
+     */
+    public static CompletableFuture<Void> publishDeadLetter(PubsubMessage message, String error, int attempts) {
+        if (deadLetterPublisher == null) return CompletableFuture.completedFuture(null);
+        PubsubMessage deadLetter = message.toBuilder()
+                .clearMessageId()
+                .clearPublishTime()
+                .putAttributes("error", error != null ? error : "")
+                .putAttributes("attempts", String.valueOf(attempts))
+                .build();
+
+        CompletableFuture<Void> published = new CompletableFuture<>();
+        ApiFuture<String> future = deadLetterPublisher.publish(deadLetter);
+        ApiFutures.addCallback(future, new ApiFutureCallback<>() {
+            @Override
+            public void onSuccess(String messageId) {
+                published.complete(null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                published.completeExceptionally(t);
+            }
+        }, MoreExecutors.directExecutor());
+        return published;
     }
 
-    public static Subscriber subscribeMessages(String projectId, Storage storage) throws IOException {
-        initSubscription(projectId);
-        ProjectSubscriptionName projSubscriptionName = ProjectSubscriptionName.of(projectId, WORKERS_SUBSCRIPTION);
+    /**
+     * Subscribes the interactive and the bulk uploads, whose messages are processed by the same worker, weighted by
+     * the {@link PriorityLanes}. Each subscriber has its own flow control, so a backlog of bulk uploads doesn't stop
+     * the interactive ones from being leased.
+     * @return the subscribers of the interactive and the bulk uploads
+     */
+    public static List<Subscriber> subscribeMessages(String projectId, Storage storage) throws IOException {
+        // The subscriptions dead-letter to this topic, so it must exist first
+        initDeadLetterTopic(projectId);
+        try (SubscriptionAdminClient subscriptionAdminClient = SubscriptionAdminClient.create()) {
+            initSubscription(subscriptionAdminClient, projectId, WORKERS_SUBSCRIPTION, TOPIC);
+            initSubscription(subscriptionAdminClient, projectId, BULK_WORKERS_SUBSCRIPTION, BULK_TOPIC);
+        }
+        PriorityLanes lanes = new PriorityLanes(new MessageReceiveHandler(storage));
+        MetricsEndpoint.register(lanes::writeMetrics);
+
+        List<Subscriber> subscribers = new ArrayList<>();
+        for (String subscription : List.of(WORKERS_SUBSCRIPTION, BULK_WORKERS_SUBSCRIPTION)) {
+            ProjectSubscriptionName projSubscriptionName = ProjectSubscriptionName.of(projectId, subscription);
+            Subscriber subscriber = newSubscriberBuilder(projSubscriptionName, lanes).build();
+            subscriber.startAsync().awaitRunning();
+            subscribers.add(subscriber);
+        }
+        System.out.println("\t- Subscribers processing up to " + MAX_OUTSTANDING_MESSAGES + " messages each with " +
+                EXECUTOR_THREADS + " threads and " + PARALLEL_PULL_COUNT + " pull stream(s).");
+        return subscribers;
+    }
 
+    /**
+     * The executor threads are shared by the pull streams, and the flow control blocks the streams, instead of
+     * leasing more messages, while the limits of outstanding messages and bytes are reached.
+     */
+    static Subscriber.Builder newSubscriberBuilder(ProjectSubscriptionName subscriptionName, MessageReceiver receiver) {
         ExecutorProvider executorProvider = InstantiatingExecutorProvider
                 .newBuilder()
-                .setExecutorThreadCount(1)
+                .setExecutorThreadCount(EXECUTOR_THREADS)
                 .build();
 
-        Subscriber subscriber = Subscriber
-                .newBuilder(projSubscriptionName, new MessageReceiveHandler(storage))
-                .setExecutorProvider(executorProvider)
+        FlowControlSettings flowControlSettings = FlowControlSettings.newBuilder()
+                .setMaxOutstandingElementCount(MAX_OUTSTANDING_MESSAGES)
+                .setMaxOutstandingRequestBytes(MAX_OUTSTANDING_BYTES)
+                .setLimitExceededBehavior(FlowController.LimitExceededBehavior.Block)
                 .build();
 
-        subscriber.startAsync().awaitRunning();
-        return subscriber;
+        return Subscriber
+                .newBuilder(subscriptionName, receiver)
+                .setExecutorProvider(executorProvider)
+                .setParallelPullCount(PARALLEL_PULL_COUNT)
+                .setFlowControlSettings(flowControlSettings);
     }
 }
@@ -0,0 +1,114 @@
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.storage.StorageException;
+import com.google.protobuf.util.Durations;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.RetryPolicy;
+import models.ProcessingMarker;
+import models.PubSubMessage;
+
+import javax.imageio.IIOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Decides what to do with a message whose processing failed:
+ * <ul>
+ *     <li>permanent failures, e.g. a corrupt image, an unsupported format or a deleted blob, which would fail again,
+ *     and failures of requests already attempted RETRY_MAX_ATTEMPTS times (5 by default), are given up: the message is
+ *     published to the dead letter topic, the failure is recorded in the request document, and the message is
+ *     acked;</li>
+ *     <li>the other failures, e.g. unavailable services or exceeded quotas, are retried: the message is nacked right
+ *     away, so its lease, its flow control and its lane are released during the backoff, and the subscription delivers
+ *     it again after a backoff that grows from RETRY_INITIAL_BACKOFF_MILLIS (1 second by default) with each attempt up
+ *     to RETRY_MAX_BACKOFF_MILLIS (1 minute by default), see {@link #getRetryPolicy()}.</li>
+ * </ul>
+ * The attempts are counted in the request marker, or by the subscription when the request couldn't be claimed.
+ */
+public class RetryScheduler {
+    private static final int MAX_ATTEMPTS = Env.getInt("RETRY_MAX_ATTEMPTS", 5, 1);
+    private static final long INITIAL_BACKOFF_MILLIS = Env.getInt("RETRY_INITIAL_BACKOFF_MILLIS", 1000, 0);
+    private static final long MAX_BACKOFF_MILLIS = Env.getInt("RETRY_MAX_BACKOFF_MILLIS", 60_000, 0);
+    // Limit of the backoffs of a subscription, 10 minutes
+    private static final long MAX_POLICY_BACKOFF_MILLIS = 600_000;
+    // The subscription dead-letters the messages delivered this many times, the maximum allowed, which only happens
+    // when they weren't given up before, e.g. delivered while busy in another worker over and over
+    static final int MAX_DELIVERY_ATTEMPTS = 100;
+
+    // The request itself is wrong, sending it again gives the same error
+    private static final Set<StatusCode.Code> PERMANENT_CODES = Set.of(
+            StatusCode.Code.INVALID_ARGUMENT,
+            StatusCode.Code.NOT_FOUND,
+            StatusCode.Code.OUT_OF_RANGE
+    );
+    private static final Set<Integer> PERMANENT_HTTP_CODES = Set.of(400, 404, 410);
+
+    /**
+     * @param cause - error of the processing, without the exceptions that wrap it
+     * @param attempts - times the request was attempted, including this one, or 0 if it's unknown
+     */
+    public static void onFailure(
+            PubsubMessage pubsubMessage,
+            PubSubMessage message,
+            Throwable cause,
+            int attempts,
+            AckReplyConsumer ackReplyConsumer
+    ) {
+        boolean permanent = isPermanent(cause);
+        if (!permanent && attempts < MAX_ATTEMPTS) {
+            System.out.println("\t- Request with id '" + message.getId() + "' will be retried after a backoff, after " +
+                    attempts + " attempt(s).");
+            ackReplyConsumer.nack();
+            return;
+        }
+
+        String error = cause.getClass().getSimpleName() + ": " + cause.getMessage();
+        System.out.println("\t- Request with id '" + message.getId() + "' given up after " + attempts + " attempt(s)" +
+                (permanent ? ", the failure is permanent." : "."));
+        CompletableFuture.allOf(
+                PubSub.publishDeadLetter(pubsubMessage, error, attempts),
+                FirestoreOperations.setRequestFailed(message, error, attempts),
+                IdempotentProcessing.recordStage(message.getId(), ProcessingMarker.Stage.FAILED, null)
+        ).whenComplete((deadLettered, deadLetterError) -> {
+            if (deadLetterError == null) {
+                ackReplyConsumer.ack();
+                return;
+            }
+            // The message is kept, to be dead-lettered when it's delivered again
+            System.out.println("* ERROR * Request with id '" + message.getId() + "' not dead-lettered: " +
+                    deadLetterError.getMessage());
+            ackReplyConsumer.nack();
+        });
+    }
+
+    /**
+     * The backoff applied by the subscription to the nacked messages, which doubles with each delivery, within the
+     * limits of the subscriptions. The Pub/Sub client can't delay the redelivery of a message otherwise, other than by
+     * holding it leased.
+     */
+    static RetryPolicy getRetryPolicy() {
+        long maxBackoffMillis = Math.min(
+                Math.max(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS),
+                MAX_POLICY_BACKOFF_MILLIS
+        );
+        return RetryPolicy.newBuilder()
+                .setMinimumBackoff(Durations.fromMillis(Math.min(INITIAL_BACKOFF_MILLIS, maxBackoffMillis)))
+                .setMaximumBackoff(Durations.fromMillis(maxBackoffMillis))
+                .build();
+    }
+
+    public static boolean isPermanent(Throwable cause) {
+        // Errors of the image reader, the image is corrupt or its format isn't supported
+        if (cause instanceof IIOException) return true;
+        if (cause instanceof ApiException) {
+            ApiException apiException = (ApiException) cause;
+            return !apiException.isRetryable() && PERMANENT_CODES.contains(apiException.getStatusCode().getCode());
+        }
+        if (cause instanceof StorageException) {
+            StorageException storageException = (StorageException) cause;
+            return !storageException.isRetryable() && PERMANENT_HTTP_CODES.contains(storageException.getCode());
+        }
+        return false;
+    }
+}
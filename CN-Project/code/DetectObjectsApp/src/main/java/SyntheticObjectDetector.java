@@ -0,0 +1,78 @@
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BoundingPoly;
+import com.google.cloud.vision.v1.LocalizedObjectAnnotation;
+import com.google.cloud.vision.v1.NormalizedVertex;
+import models.ImageContent;
+import models.PubSubMessage;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates the detected objects locally instead of calling the Vision API, to benchmark and load test the processing
+ * without the API, its quota and its costs. The detections of a message only depend on its id, so every run gives the
+ * same objects for the same requests, and they're answered after a fixed latency, without holding a thread:
+ * <ul>
+ *     <li>SYNTHETIC_OBJECTS: objects detected in each image, 5 by default;</li>
+ *     <li>SYNTHETIC_LATENCY_MILLIS: time until the response, 200 ms by default, similar to the Vision API.</li>
+ * </ul>
+ */
+public class SyntheticObjectDetector implements ObjectDetector {
+    private static final List<String> NAMES = List.of(
+            "Person", "Car", "Bicycle", "Dog", "Cat", "Tree", "Building", "Chair", "Bottle", "Table", "Window", "Wheel"
+    );
+
+    private final int objects;
+    private final long latencyMillis;
+
+    public SyntheticObjectDetector(int objects, long latencyMillis) {
+        this.objects = objects;
+        this.latencyMillis = latencyMillis;
+    }
+
+    public static SyntheticObjectDetector fromEnv() {
+        SyntheticObjectDetector detector = new SyntheticObjectDetector(
+                Env.getInt("SYNTHETIC_OBJECTS", 5, 0), Env.getLong("SYNTHETIC_LATENCY_MILLIS", 200, 0)
+        );
+        System.out.println("\t- Synthetic detections of " + detector.objects + " object(s) after " +
+                detector.latencyMillis + " ms, the Vision API isn't used.");
+        return detector;
+    }
+
+    @Override
+    public CompletableFuture<AnnotateImageResponse> detect(PubSubMessage message, ImageContent image) {
+        AnnotateImageResponse response = generate(message.getId());
+        if (latencyMillis <= 0) return CompletableFuture.completedFuture(response);
+        Executor delayed = CompletableFuture.delayedExecutor(latencyMillis, TimeUnit.MILLISECONDS);
+        return CompletableFuture.supplyAsync(() -> response, delayed);
+    }
+
+    /**
+     * Objects with boxes of random position and size within the image, whose vertices are normalized like the ones of
+     * the Vision API, so they're drawn on images of any resolution.
+     */
+    private AnnotateImageResponse generate(String requestId) {
+        Random random = new Random(requestId.hashCode());
+        AnnotateImageResponse.Builder response = AnnotateImageResponse.newBuilder();
+        for (int i = 0; i < objects; i++) {
+            float left = random.nextFloat() * 0.8f;
+            float top = random.nextFloat() * 0.8f;
+            float right = left + 0.05f + random.nextFloat() * (0.95f - left);
+            float bottom = top + 0.05f + random.nextFloat() * (0.95f - top);
+            BoundingPoly box = BoundingPoly.newBuilder()
+                    .addNormalizedVertices(NormalizedVertex.newBuilder().setX(left).setY(top))
+                    .addNormalizedVertices(NormalizedVertex.newBuilder().setX(right).setY(top))
+                    .addNormalizedVertices(NormalizedVertex.newBuilder().setX(right).setY(bottom))
+                    .addNormalizedVertices(NormalizedVertex.newBuilder().setX(left).setY(bottom))
+                    .build();
+            response.addLocalizedObjectAnnotations(LocalizedObjectAnnotation.newBuilder()
+                    .setName(NAMES.get(random.nextInt(NAMES.size())))
+                    .setScore(0.5f + random.nextFloat() / 2)
+                    .setBoundingPoly(box));
+        }
+        return response.build();
+    }
+}
@@ -1,140 +1,184 @@
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiExceptionFactory;
 import com.google.cloud.ReadChannel;
-import com.google.cloud.WriteChannel;
 import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
 import com.google.cloud.vision.v1.*;
 import com.google.cloud.vision.v1.Image;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Status;
 import models.DetectedObject;
+import models.ImageContent;
 import models.PubSubMessage;
 import models.Vertex;
+import tracing.Span;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public class Vision {
 
-    public static void detectLocalizedObjectsGcs(
-        Storage storage,
-        PubSubMessage message
-    ) throws IOException, ExecutionException, InterruptedException {
-        String bucket = message.getBucket();
-        String blob = message.getBlob();
-
-        String gcsPath = "gs://" + bucket + "/" + blob;
-        ImageSource imgSource = ImageSource.newBuilder().setGcsImageUri(gcsPath).build();
-        Image img = Image.newBuilder().setSource(imgSource).build();
+    // Maximum size of the images sent in the requests to the Vision API
+    private static final int MAX_INLINE_CONTENT_BYTES = 10 * 1024 * 1024;
+    private static final int MAX_READ_CHUNK_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Sends the request to detect the objects to the Vision API, with the requests of the other messages being
+     * processed, so no thread waits for the response.
+     * The image already fetched is sent in the request, instead of being read again by the Vision API, unless it's too
+     * big or there's a downscaled copy of it in which the objects are detected.
+     * @param image - content of the image, or null if it wasn't fetched
+     */
+    public static CompletableFuture<AnnotateImageResponse> detectObjects(PubSubMessage message, ImageContent image) {
+        Image img;
+        if (image != null && !image.isStreamed() && message.getAnalysisBlob() == null &&
+                image.getSize() <= MAX_INLINE_CONTENT_BYTES) {
+            img = Image.newBuilder().setContent(image.getContent()).build();
+        } else {
+            // The vertices of the objects are normalized, so they can be drawn on the original image
+            String analysedBlob = message.getAnalysisBlob() != null ? message.getAnalysisBlob() : message.getBlob();
+            String gcsPath = "gs://" + message.getBucket() + "/" + analysedBlob;
+            ImageSource imgSource = ImageSource.newBuilder().setGcsImageUri(gcsPath).build();
+            img = Image.newBuilder().setSource(imgSource).build();
+        }
 
         AnnotateImageRequest request = AnnotateImageRequest.newBuilder()
                         .addFeatures(Feature.newBuilder().setType(Feature.Type.OBJECT_LOCALIZATION))
                         .setImage(img)
                         .build();
+        return VisionBatcher.annotate(request).thenApply(response -> {
+            if (!response.hasError()) return response;
+            // Error of this image in a batch that succeeded, e.g. invalid image data, which isn't retried
+            Status.Code code = Status.fromCodeValue(response.getError().getCode()).getCode();
+            throw ApiExceptionFactory.createException(
+                    "Vision API error: " + response.getError().getMessage(), null, GrpcStatusCode.of(code),
+                    code != Status.Code.INVALID_ARGUMENT
+            );
+        });
+    }
 
-        BatchAnnotateImagesRequest singleBatchRequest = BatchAnnotateImagesRequest.newBuilder()
-                .addRequests(request)
-                .build();
+    public static List<DetectedObject> getDetectedObjects(AnnotateImageResponse response) {
+        LinkedList<DetectedObject> detectedObjects = new LinkedList<>();
+        for (LocalizedObjectAnnotation annotation : response.getLocalizedObjectAnnotationsList()) {
+            LinkedList<models.Vertex> objectVertices = new LinkedList<>();
+            annotation.getBoundingPoly()
+                    .getNormalizedVerticesList()
+                    .forEach(vertex -> objectVertices.add(new Vertex(vertex.getX(), vertex.getY())));
+            detectedObjects.add(new DetectedObject(annotation.getName(), annotation.getScore(), objectVertices));
+        }
+        return detectedObjects;
+    }
 
-        try (ImageAnnotatorClient client = ImageAnnotatorClient.create()) {
-            // Perform the request
-            BatchAnnotateImagesResponse batchResponse = client.batchAnnotateImages(singleBatchRequest);
-            List<AnnotateImageResponse> listResponses = batchResponse.getResponsesList();
+    /**
+     * Reads the original image, which is annotated, the inlined images may not be stored yet, but they're already in
+     * memory. The others are read to a pooled buffer, with a single request for the metadata and one for the content,
+     * whose bytes are reserved from the memory budget of the decoder. The images bigger than the biggest pooled buffer,
+     * or that don't fit in the budget left, are streamed from the Cloud Storage when they're decoded instead, and read
+     * by the Vision API from their gs:// URI.
+     */
+    public static ImageContent fetchImage(Storage storage, PubSubMessage message) throws IOException {
+        if (message.getContent() != null) {
+            return new ImageContent(message.getContent(), "image/" + message.getImageType(), null);
+        }
+        BlobId blobId = BlobId.of(message.getBucket(), message.getBlob());
+        Blob blob = storage.get(blobId);
+        if (blob == null) {
+            System.out.println("No such Blob exists!");
+            // Not retried, the blob of the request was deleted
+            throw new StorageException(404,
+                    "Blob '" + blobId.getName() + "' not found in bucket '" + blobId.getBucket() + "'.");
+        }
 
-            if (listResponses.isEmpty()) {
-                System.out.println("Empty response, no objects detected.");
-                return;
-            }
-            // Get the only response
-            AnnotateImageResponse response = listResponses.get(0);
+        long blobSize = blob.getSize();
+        Runnable releaseReservation = blobSize <= BufferPool.MAX_POOLED_BUFFER_BYTES
+                ? BoundedImageDecoder.tryReserve(BufferPool.getBufferSize((int) blobSize))
+                : null;
+        if (releaseReservation == null) {
+            System.out.println("\t- Image '" + blobId.getName() + "' with " + blobSize + " bytes streamed.");
+            return new ImageContent(() -> Channels.newInputStream(blob.reader()), blobSize, blob.getContentType());
+        }
 
-            // Get the information detected in the image
-            LinkedList<DetectedObject> detectedObjects = new LinkedList<>();
-            for (LocalizedObjectAnnotation annotation : response.getLocalizedObjectAnnotationsList()) {
-                LinkedList<models.Vertex> objectVertices = new LinkedList<>();
-                annotation.getBoundingPoly()
-                        .getNormalizedVerticesList()
-                        .forEach(vertex -> objectVertices.add(new Vertex(vertex.getX(), vertex.getY())));
-                detectedObjects.add(new DetectedObject(annotation.getName(), annotation.getScore(), objectVertices));
+        int size = (int) blobSize;
+        byte[] buffer = BufferPool.acquire(size);
+        try (ReadChannel reader = blob.reader()) {
+            // Each chunk is a request to the Cloud Storage, so most images are read in a single request
+            reader.setChunkSize(Math.max(Math.min(size, MAX_READ_CHUNK_BYTES), 1));
+            ByteBuffer content = ByteBuffer.wrap(buffer, 0, size);
+            while (content.hasRemaining()) {
+                if (reader.read(content) < 0) throw new IOException("Blob '" + blobId.getName() + "' ended early.");
             }
-
-            // Annotate in memory Blob image
-            BlobId blobId = BlobId.of(bucket, blob);
-            BufferedImage bufferImg = getBlobBufferedImage(storage, blobId);
-            annotateWithObjects(bufferImg, response.getLocalizedObjectAnnotationsList());
-
-            // Save the image to a new blob in the same bucket. The name of new blob has the annotated prefix
-            String destinationBlobName = blob + "-annotated";
-            writeAnnotatedImage(storage, bufferImg, blobId, bucket, destinationBlobName);
-            System.out.println("\t- Annotated image with id '" + message.getId() + "' successfully stored.");
-
-            // Save objects found in Firestore
-            FirestoreOperations.setDetectedObjectsInfo(message, destinationBlobName, detectedObjects);
-            System.out.println("\t- Request and detected objects information successfully saved.");
+        } catch (IOException | RuntimeException e) {
+            releaseReservation.run();
+            BufferPool.release(buffer);
+            throw e;
         }
+        return new ImageContent(
+                UnsafeByteOperations.unsafeWrap(buffer, 0, size), blob.getContentType(), buffer, releaseReservation
+        );
     }
 
-    private static void writeAnnotatedImage(
-            Storage storage,
-            BufferedImage bufferImg,
-            BlobId blobId,
-            String bucketName,
-            String destinationBlobName
-    ) throws IOException {
-        String imageContentType = storage.get(blobId).getContentType(); // image/jgp
-        String imageType = imageContentType.substring(imageContentType.indexOf('/') + 1); // jpg
-
-        BlobInfo blobInfo = BlobInfo.newBuilder(BlobId.of(bucketName, destinationBlobName))
-                .setContentType(imageContentType)
-                .build();
-        Blob destBlob = storage.create(blobInfo);
-        WriteChannel writeChannel = storage.writer(destBlob);
-        OutputStream out = Channels.newOutputStream(writeChannel);
-        ImageIO.write(bufferImg, imageType, out);
-        out.close();
+    /**
+     * Frees the memory of the image once it isn't needed anymore.
+     */
+    public static void releaseImage(ImageContent image) {
+        image.releaseReservation();
+        BufferPool.release(image.getBuffer());
     }
 
-    private static BufferedImage getBlobBufferedImage(Storage storage, BlobId blobId) throws IOException {
-        Blob blob = storage.get(blobId);
-        if (blob == null) {
-            System.out.println("No such Blob exists!");
-            throw new IOException("Blob '" + blobId.getName() + "' not found in bucket '" + blobId.getBucket() + "'.");
+    /**
+     * Decodes the image, within the memory budget of the decoded images, draws the detected objects and encodes it in
+     * the same format to the output stream.
+     */
+    public static void renderAnnotatedImage(
+            ImageContent image,
+            List<LocalizedObjectAnnotation> objects,
+            OutputStream out,
+            Span processSpan
+    ) throws IOException, InterruptedException {
+        Span decodeSpan = processSpan.startChild("decode");
+        try (BoundedImageDecoder.DecodedImage decodedImage = BoundedImageDecoder.decode(image)) {
+            decodeSpan.end();
+            BufferedImage bufferImg = decodedImage.getImage();
+
+            Span annotateSpan = processSpan.startChild("annotate").setAttribute("objects", objects.size());
+            AnnotationRenderer.render(bufferImg, objects);
+            annotateSpan.end();
+
+            // The encoded image is uploaded while it's encoded, so this span also includes most of the upload
+            Span encodeSpan = processSpan.startChild("encode");
+            String imageType = image.getContentType().substring(image.getContentType().indexOf('/') + 1); // jpg
+            AnnotatedImageEncoder.fromEnv().encode(bufferImg, imageType, out);
+            encodeSpan.end();
         }
-        ReadChannel reader = blob.reader();
-        InputStream in = Channels.newInputStream(reader);
-        return ImageIO.read(in);
     }
 
-    private static void annotateWithObjects(BufferedImage img, List<LocalizedObjectAnnotation> objects) {
-        for (LocalizedObjectAnnotation obj : objects) {
-            annotateWithObject(img, obj);
-        }
+    /**
+     * Starts the upload of the annotated image to a new blob in the same bucket, the name of new blob has the
+     * annotated suffix. The content of the blob is the one written to the upload.
+     */
+    public static PipedUpload startAnnotatedImageUpload(
+            Storage storage,
+            PubSubMessage message,
+            String imageContentType,
+            Executor executor
+    ) {
+        BlobInfo blobInfo = BlobInfo.newBuilder(BlobId.of(message.getBucket(), getAnnotatedBlobName(message)))
+                .setContentType(imageContentType)
+                .build();
+        return PipedUpload.start(storage, blobInfo, executor);
     }
 
-    private static void annotateWithObject(BufferedImage img, LocalizedObjectAnnotation obj) {
-        Graphics2D gfx = img.createGraphics();
-        gfx.setFont(new Font("Arial", Font.PLAIN, 18));
-        gfx.setStroke(new BasicStroke(3));
-        gfx.setColor(new Color(0x00ff00));
-        Polygon poly = new Polygon();
-        BoundingPoly imgPoly = obj.getBoundingPoly();
-
-        // Draw object name
-        gfx.drawString(obj.getName(),
-                imgPoly.getNormalizedVertices(0).getX() * img.getWidth(),
-                imgPoly.getNormalizedVertices(0).getY() * img.getHeight() - 3);
-
-        // Draw bounding box of object
-        for (NormalizedVertex vertex : obj.getBoundingPoly().getNormalizedVerticesList()) {
-            poly.addPoint((int) (img.getWidth() * vertex.getX()), (int) (img.getHeight() * vertex.getY()));
-        }
-        gfx.draw(poly);
+    public static String getAnnotatedBlobName(PubSubMessage message) {
+        return message.getBlob() + "-annotated";
     }
 }
@@ -0,0 +1,142 @@
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BatchAnnotateImagesRequest;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups the requests to the Vision API of the messages processed at the same time in a single batchAnnotateImages
+ * call, made with a client shared by the whole application, instead of a client and a call per image.
+ * A batch is sent when it has VISION_BATCH_SIZE requests (16 by default, the maximum of the API), or when
+ * VISION_BATCH_LINGER_MS milliseconds (5 by default) have passed since its first request was added.
+ */
+public class VisionBatcher {
+    private static final int MAX_BATCH_SIZE = 16;
+    private static final int BATCH_SIZE = Math.min(Env.getInt("VISION_BATCH_SIZE", MAX_BATCH_SIZE, 1), MAX_BATCH_SIZE);
+    private static final long LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos(Env.getInt("VISION_BATCH_LINGER_MS", 5, 0));
+    // The inlined images are sent in the request, so a batch is also limited by their size
+    private static final long MAX_BATCH_CONTENT_BYTES = 10 * 1024 * 1024;
+
+    private static final BlockingQueue<PendingRequest> pending = new LinkedBlockingQueue<>();
+    private static ImageAnnotatorClient client;
+    // Request that didn't fit in the previous batch, only used by the dispatcher thread
+    private static PendingRequest nextBatchFirst;
+
+    private static class PendingRequest {
+        private final AnnotateImageRequest request;
+        private final CompletableFuture<AnnotateImageResponse> response = new CompletableFuture<>();
+
+        private PendingRequest(AnnotateImageRequest request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * Creates the client and starts the thread that sends the batches.
+     */
+    public static synchronized void start() throws IOException {
+        if (client != null) return;
+        client = ImageAnnotatorClient.create();
+        Thread dispatcher = new Thread(VisionBatcher::dispatch, "vision-batcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        System.out.println("\t- Vision requests batched up to " + BATCH_SIZE + " images.");
+    }
+
+    /**
+     * @return the future response of the request, which is completed when the response of its batch arrives
+     */
+    public static CompletableFuture<AnnotateImageResponse> annotate(AnnotateImageRequest request) {
+        PendingRequest pendingRequest = new PendingRequest(request);
+        pending.add(pendingRequest);
+        return pendingRequest.response;
+    }
+
+    /**
+     * A batch whose call fails before it's sent, e.g. because it's rejected by the client, only fails its own requests,
+     * and the dispatcher goes on with the next batch.
+     */
+    private static void dispatch() {
+        try {
+            while (true) {
+                List<PendingRequest> batch = nextBatch();
+                try {
+                    send(batch);
+                } catch (RuntimeException e) {
+                    System.out.println("* ERROR * Vision batch of " + batch.size() + " image(s) not sent: " + e);
+                    e.printStackTrace();
+                    batch.forEach(pendingRequest -> pendingRequest.response.completeExceptionally(e));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void send(List<PendingRequest> batch) {
+        BatchAnnotateImagesRequest.Builder batchRequest = BatchAnnotateImagesRequest.newBuilder();
+        batch.forEach(pendingRequest -> batchRequest.addRequests(pendingRequest.request));
+
+        // The call is asynchronous, so the next batch is collected while this one is processed
+        ApiFuture<BatchAnnotateImagesResponse> batchResponse =
+                client.batchAnnotateImagesCallable().futureCall(batchRequest.build());
+        ApiFutures.addCallback(batchResponse, new ApiFutureCallback<>() {
+            @Override
+            public void onSuccess(BatchAnnotateImagesResponse result) {
+                // The responses are in the same order as the requests
+                for (int i = 0; i < batch.size(); i++) {
+                    AnnotateImageResponse response = i < result.getResponsesCount()
+                            ? result.getResponses(i)
+                            : AnnotateImageResponse.getDefaultInstance();
+                    batch.get(i).response.complete(response);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                batch.forEach(pendingRequest -> pendingRequest.response.completeExceptionally(t));
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Waits for the first request and then for more requests until the batch is full or the linger time ends.
+     */
+    private static List<PendingRequest> nextBatch() throws InterruptedException {
+        List<PendingRequest> batch = new ArrayList<>(BATCH_SIZE);
+        PendingRequest first = nextBatchFirst != null ? nextBatchFirst : pending.take();
+        nextBatchFirst = null;
+        batch.add(first);
+        long contentBytes = first.request.getImage().getContent().size();
+        long deadline = System.nanoTime() + LINGER_NANOS;
+
+        while (batch.size() < BATCH_SIZE) {
+            PendingRequest next = pending.poll();
+            if (next == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) break;
+                next = pending.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) break;
+            }
+            contentBytes += next.request.getImage().getContent().size();
+            if (contentBytes > MAX_BATCH_CONTENT_BYTES) {
+                nextBatchFirst = next;
+                break;
+            }
+            batch.add(next);
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,28 @@
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import models.ImageContent;
+import models.PubSubMessage;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Detects the objects with the Vision API, in batches with the other messages, see {@link VisionBatcher}.
+ */
+public class VisionObjectDetector implements ObjectDetector {
+
+    private VisionObjectDetector() {
+    }
+
+    /**
+     * Creates the client of the Vision API and starts the batching of the requests.
+     */
+    public static VisionObjectDetector start() throws IOException {
+        VisionBatcher.start();
+        return new VisionObjectDetector();
+    }
+
+    @Override
+    public CompletableFuture<AnnotateImageResponse> detect(PubSubMessage message, ImageContent image) {
+        return Vision.detectObjects(message, image);
+    }
+}
@@ -0,0 +1,202 @@
+import tracing.Tracer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the processing of the messages, exposed on '/metrics' when the environment variable METRICS_PORT is
+ * defined (EMBEDDED_METRICS_PORT in the embedded mode), to size the instances and tune the autoscaler:
+ * <ul>
+ *     <li>latency histograms of each stage, from the spans of the processing, where the queue wait is the age of
+ *     the messages when they're received;</li>
+ *     <li>messages in flight, and the queue depth and active threads of each pipeline stage;</li>
+ *     <li>images and bytes processed, in total and per second over the last minute;</li>
+ *     <li>outcomes of the messages and the age of the last message received, which grows with the backlog;</li>
+ *     <li>time from the start of the JVM until the application is ready and until the first message is processed,
+ *     which is also logged, with the time since the VM booted, to see how fast a new instance absorbs a burst.</li>
+ * </ul>
+ */
+public class WorkerMetrics {
+    // Names of the spans of the processing of each message
+    private static final String[] STAGES = {
+            "queue-wait", "download", "vision", "decode", "annotate", "encode", "gcs-write", "firestore-commit", "process"
+    };
+    private static final double[] BUCKETS_SECONDS = {
+            0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300
+    };
+    private static final int RATE_SAMPLE_SECONDS = 10;
+    private static final int RATE_WINDOW_SAMPLES = 60 / RATE_SAMPLE_SECONDS;
+
+    private static final Map<String, Histogram> stageHistograms = new ConcurrentHashMap<>();
+    private static final Map<IdempotentProcessing.Outcome, LongAdder> outcomes = new ConcurrentHashMap<>();
+    private static final LongAdder errors = new LongAdder();
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    private static final LongAdder images = new LongAdder();
+    private static final LongAdder bytes = new LongAdder();
+    private static final AtomicLong lastMessageAgeMillis = new AtomicLong();
+    private static final Deque<long[]> rateSamples = new ArrayDeque<>(); // {nanoTime, images, bytes}
+    private static final long JVM_START_MILLIS = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private static volatile long readyMillis; // Since the JVM started, 0 until it's ready
+    private static final AtomicLong firstProcessedMillis = new AtomicLong(); // Since the JVM started, 0 until then
+
+    /**
+     * Latency histogram with cumulative buckets, updated without locks.
+     */
+    private static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS_SECONDS.length];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumMicros = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        private void observe(long micros) {
+            double seconds = micros / 1e6;
+            for (int i = 0; i < buckets.length; i++) {
+                if (seconds <= BUCKETS_SECONDS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sumMicros.add(micros);
+        }
+    }
+
+    /**
+     * Aggregates the spans of the stages and starts the endpoint.
+     * @param portEnv - name of the environment variable with the port of the endpoint
+     */
+    public static void start(String portEnv) throws IOException {
+        for (String stage : STAGES) stageHistograms.put(stage, new Histogram());
+        Tracer.addListener((name, durationMicros) -> {
+            Histogram histogram = stageHistograms.get(name);
+            if (histogram != null) histogram.observe(durationMicros);
+        });
+
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(WorkerMetrics::sampleRates, 0, RATE_SAMPLE_SECONDS, TimeUnit.SECONDS);
+
+        MetricsEndpoint.register(WorkerMetrics::writeMetrics);
+        MetricsEndpoint.register(DetectionPipeline::writeMetrics);
+        MetricsEndpoint.start(portEnv);
+    }
+
+    /**
+     * Records that the application is ready to receive messages.
+     */
+    public static void started() {
+        readyMillis = System.currentTimeMillis() - JVM_START_MILLIS;
+        System.out.println("\t- Ready " + readyMillis + " ms after the JVM started" + getSinceBoot() + '.');
+    }
+
+    public static void messageReceived(long ageMillis) {
+        inFlight.incrementAndGet();
+        lastMessageAgeMillis.set(ageMillis);
+    }
+
+    public static void messageFinished(IdempotentProcessing.Outcome outcome) {
+        inFlight.decrementAndGet();
+        if (outcome == null) errors.increment();
+        else outcomes.computeIfAbsent(outcome, key -> new LongAdder()).increment();
+
+        if (outcome == IdempotentProcessing.Outcome.PROCESSED && firstProcessedMillis.get() == 0) {
+            long millis = System.currentTimeMillis() - JVM_START_MILLIS;
+            if (firstProcessedMillis.compareAndSet(0, millis)) {
+                System.out.println("\t- First message processed " + millis + " ms after the JVM started" +
+                        getSinceBoot() + '.');
+            }
+        }
+    }
+
+    /**
+     * @return the time since the VM booted, read from '/proc/uptime' on Linux, or an empty string elsewhere
+     */
+    private static String getSinceBoot() {
+        try {
+            String uptime = Files.readString(Path.of("/proc/uptime")); // e.g. '35.45 12.80'
+            return String.format(" and %.1f s after the VM booted", Double.parseDouble(uptime.split(" ")[0]));
+        } catch (IOException | RuntimeException e) {
+            return "";
+        }
+    }
+
+    /**
+     * @param imageBytes - size of the original image, 0 if it wasn't read
+     */
+    public static void imageProcessed(long imageBytes) {
+        images.increment();
+        bytes.add(imageBytes);
+    }
+
+    private static void sampleRates() {
+        synchronized (rateSamples) {
+            rateSamples.addLast(new long[]{System.nanoTime(), images.sum(), bytes.sum()});
+            if (rateSamples.size() > RATE_WINDOW_SAMPLES + 1) rateSamples.removeFirst();
+        }
+    }
+
+    private static void writeMetrics(StringBuilder metrics) {
+        metrics.append("# TYPE detectobjects_stage_seconds histogram\n");
+        for (String stage : STAGES) {
+            Histogram histogram = stageHistograms.get(stage);
+            String labels = "{stage=\"" + stage + "\"";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS_SECONDS.length; i++) {
+                cumulative += histogram.buckets[i].sum();
+                metrics.append("detectobjects_stage_seconds_bucket").append(labels)
+                        .append(",le=\"").append(BUCKETS_SECONDS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            long count = histogram.count.sum();
+            metrics.append("detectobjects_stage_seconds_bucket").append(labels).append(",le=\"+Inf\"} ")
+                    .append(count).append('\n');
+            metrics.append("detectobjects_stage_seconds_sum").append(labels).append("} ")
+                    .append(histogram.sumMicros.sum() / 1e6).append('\n');
+            metrics.append("detectobjects_stage_seconds_count").append(labels).append("} ").append(count).append('\n');
+        }
+
+        metrics.append("# TYPE detectobjects_messages_total counter\n");
+        for (IdempotentProcessing.Outcome outcome : IdempotentProcessing.Outcome.values()) {
+            LongAdder adder = outcomes.get(outcome);
+            metrics.append("detectobjects_messages_total{outcome=\"").append(outcome.name().toLowerCase())
+                    .append("\"} ").append(adder != null ? adder.sum() : 0).append('\n');
+        }
+        metrics.append("detectobjects_messages_total{outcome=\"error\"} ").append(errors.sum()).append('\n');
+
+        MetricsEndpoint.gauge(metrics, "detectobjects_messages_in_flight", inFlight.get());
+        MetricsEndpoint.gauge(metrics, "detectobjects_last_message_age_seconds", lastMessageAgeMillis.get() / 1e3);
+        MetricsEndpoint.counter(metrics, "detectobjects_images_total", images.sum());
+        MetricsEndpoint.counter(metrics, "detectobjects_image_bytes_total", bytes.sum());
+
+        double imagesPerSecond = 0, bytesPerSecond = 0;
+        synchronized (rateSamples) {
+            if (rateSamples.size() > 1) {
+                long[] first = rateSamples.getFirst(), last = rateSamples.getLast();
+                double seconds = (last[0] - first[0]) / 1e9;
+                imagesPerSecond = (last[1] - first[1]) / seconds;
+                bytesPerSecond = (last[2] - first[2]) / seconds;
+            }
+        }
+        MetricsEndpoint.gauge(metrics, "detectobjects_images_per_second", imagesPerSecond);
+        MetricsEndpoint.gauge(metrics, "detectobjects_image_bytes_per_second", bytesPerSecond);
+        MetricsEndpoint.gauge(metrics, "detectobjects_startup_ready_seconds", readyMillis / 1e3);
+        MetricsEndpoint.gauge(metrics, "detectobjects_startup_first_message_seconds", firstProcessedMillis.get() / 1e3);
+    }
+}
@@ -1,6 +1,8 @@
 package models;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class DetectedObject {
     private final String name;
@@ -24,4 +26,26 @@ public class DetectedObject {
     public List<Vertex> getObjectVertices() {
         return objectVertices;
     }
+
+    /**
+     * Counts how many times each object name was detected in the same image.
+     * @param detectedObjects - objects detected in one image
+     * @return map where the key is the object name and the value the times it was detected
+     */
+    public static Map<String, Integer> getObjectsAppearances(List<DetectedObject> detectedObjects) {
+        HashMap<String, Integer> objectsNamesMap = new HashMap<>();
+        detectedObjects.forEach(obj -> objectsNamesMap.merge(obj.getName(), 1, Integer::sum));
+        return objectsNamesMap;
+    }
+
+    /**
+     * Computes, for each object name, the highest score with which it was detected in the same image.
+     * @param detectedObjects - objects detected in one image
+     * @return map where the key is the object name and the value its maximum score
+     */
+    public static Map<String, Double> getObjectsMaxScores(List<DetectedObject> detectedObjects) {
+        HashMap<String, Double> maxScoresMap = new HashMap<>();
+        detectedObjects.forEach(obj -> maxScoresMap.merge(obj.getName(), obj.getScore(), Math::max));
+        return maxScoresMap;
+    }
 }
@@ -0,0 +1,84 @@
+package models;
+
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The content of an image, either in memory or streamed from where it's stored, when it's too big to be kept in memory.
+ */
+public class ImageContent {
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+
+    private final ByteString content; // Null if the content is streamed
+    private final Source source; // Only used if the content is streamed
+    private final long size;
+    private final String contentType; // e.g. image/jpeg
+    private final byte[] buffer; // Optional, pooled buffer that holds the content, released once it isn't needed
+    // Optional, releases the memory reserved for the buffer
+    private final AtomicReference<Runnable> reservation;
+
+    public ImageContent(ByteString content, String contentType, byte[] buffer) {
+        this(content, contentType, buffer, null);
+    }
+
+    public ImageContent(ByteString content, String contentType, byte[] buffer, Runnable releaseReservation) {
+        this.content = content;
+        this.source = null;
+        this.size = content.size();
+        this.contentType = contentType;
+        this.buffer = buffer;
+        this.reservation = new AtomicReference<>(releaseReservation);
+    }
+
+    public ImageContent(Source source, long size, String contentType) {
+        this.content = null;
+        this.source = source;
+        this.size = size;
+        this.contentType = contentType;
+        this.buffer = null;
+        this.reservation = new AtomicReference<>();
+    }
+
+    /**
+     * @return the content, or null if it's streamed
+     */
+    public ByteString getContent() {
+        return content;
+    }
+
+    public boolean isStreamed() {
+        return content == null;
+    }
+
+    public InputStream openStream() throws IOException {
+        return content != null ? content.newInput() : source.open();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Releases the memory reserved for the buffer, once.
+     * @return if the memory was reserved and wasn't released yet
+     */
+    public boolean releaseReservation() {
+        Runnable releaseReservation = reservation.getAndSet(null);
+        if (releaseReservation == null) return false;
+        releaseReservation.run();
+        return true;
+    }
+}
@@ -0,0 +1,50 @@
+package models;
+
+/**
+ * Progress of the processing of a request, stored in the Firestore so a message delivered again, to this or another
+ * worker, is processed from the last stage finished.
+ */
+public class ProcessingMarker {
+    public enum Stage {
+        CLAIMED,   // Being processed, nothing finished yet
+        DETECTED,  // Response of the Vision API stored in the marker
+        STORED,    // Annotated image stored in the Cloud Storage
+        COMPLETED, // Documents of the request written, nothing left to do
+        FAILED     // Given up, the message was sent to the dead letter topic
+    }
+
+    private final Stage stage;
+    private final byte[] response; // Serialized response of the Vision API, from the DETECTED stage on
+    private final boolean busy;
+    private final int attempts; // Times the processing of the request was claimed, including the current one
+
+    public ProcessingMarker(Stage stage, byte[] response, boolean busy, int attempts) {
+        this.stage = stage;
+        this.response = response;
+        this.busy = busy;
+        this.attempts = attempts;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    public byte[] getResponse() {
+        return response;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public boolean isFinished() {
+        return stage == Stage.COMPLETED || stage == Stage.FAILED;
+    }
+
+    /**
+     * @return true if another worker claimed the request and its claim hasn't expired
+     */
+    public boolean isBusy() {
+        return busy;
+    }
+}
@@ -1,18 +1,32 @@
 package models;
 
+import com.google.protobuf.ByteString;
+
 public class PubSubMessage {
     private final String id;
     private final String imageName;
     private final String imageType;
     private final String bucket;
     private final String blob;
+    private final String analysisBlob; // Optional, downscaled copy of the image in which the objects are detected
+    private final ByteString content; // Optional, content of the small images that are sent in the message
 
-    public PubSubMessage(String id, String imageName, String imageType, String bucket, String blob) {
+    public PubSubMessage(
+            String id,
+            String imageName,
+            String imageType,
+            String bucket,
+            String blob,
+            String analysisBlob,
+            ByteString content
+    ) {
         this.id = id;
         this.imageName = imageName;
         this.imageType = imageType;
         this.bucket = bucket;
         this.blob = blob;
+        this.analysisBlob = analysisBlob;
+        this.content = content;
     }
 
     public String getId() {
@@ -34,4 +48,12 @@ public class PubSubMessage {
     public String getBlob() {
         return blob;
     }
+
+    public String getAnalysisBlob() {
+        return analysisBlob;
+    }
+
+    public ByteString getContent() {
+        return content;
+    }
 }
@@ -0,0 +1,83 @@
+import com.google.cloud.ReadChannel;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.Iterator;
+
+/**
+ * Creates the downscaled copy of an uploaded image that is sent to the Vision API instead of the original, since the
+ * object localization doesn't benefit from more than a few megapixels. As the vertices returned by the Vision API are
+ * normalized, they still map onto the original image when it's annotated.
+ * The copy is only created when the environment variable ANALYSIS_COPY_MAX_PIXELS is defined and the image has more
+ * pixels than its value.
+ */
+public class AnalysisCopy {
+    // 0 when the variable isn't defined, and no copies are created
+    private static final long MAX_PIXELS = Env.getLong("ANALYSIS_COPY_MAX_PIXELS", 0, 0);
+    private static final String SUFFIX = "-analysis";
+
+    public static boolean isEnabled() {
+        return MAX_PIXELS > 0;
+    }
+
+    /**
+     * Reads the original image from the Cloud Storage with a subsampling that fits it in the maximum number of pixels.
+     * The reader decodes the image row by row while it's read, keeping only the subsampled rows, and the stream is
+     * cached on disk by ImageIO, so the memory used is bounded by the size of the copy and not of the original.
+     * @return the name of the blob with the copy, or null if the image is small enough or its format isn't readable
+     */
+    public static String create(Storage storage, String bucket, String blobName) throws IOException {
+        try (ReadChannel reader = storage.reader(BlobId.of(bucket, blobName));
+             ImageInputStream input = ImageIO.createImageInputStream(Channels.newInputStream(reader))) {
+            Iterator<ImageReader> imageReaders = ImageIO.getImageReaders(input);
+            if (!imageReaders.hasNext()) return null;
+
+            ImageReader imageReader = imageReaders.next();
+            try {
+                imageReader.setInput(input, true, true);
+                long pixels = (long) imageReader.getWidth(0) * imageReader.getHeight(0);
+                if (pixels <= MAX_PIXELS) return null;
+
+                int subsampling = (int) Math.ceil(Math.sqrt((double) pixels / MAX_PIXELS));
+                ImageReadParam param = imageReader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage copy = toRgb(imageReader.read(0, param));
+
+                String copyBlobName = blobName + SUFFIX;
+                BlobInfo blobInfo = BlobInfo.newBuilder(BlobId.of(bucket, copyBlobName)).setContentType("image/jpeg").build();
+                try (WriteChannel writer = storage.writer(blobInfo);
+                     OutputStream out = Channels.newOutputStream(writer)) {
+                    ImageIO.write(copy, "jpg", out);
+                }
+                System.out.println("\t- Analysis copy of the image '" + blobName + "' with " + copy.getWidth() + 'x' +
+                        copy.getHeight() + " pixels stored with success.");
+                return copyBlobName;
+            } finally {
+                imageReader.dispose();
+            }
+        }
+    }
+
+    /**
+     * The JPEG writer doesn't support transparency nor indexed colors, so those images are drawn on an RGB image.
+     */
+    private static BufferedImage toRgb(BufferedImage img) {
+        if (!img.getColorModel().hasAlpha() && img.getType() != BufferedImage.TYPE_BYTE_INDEXED) return img;
+        BufferedImage rgb = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D gfx = rgb.createGraphics();
+        gfx.drawImage(img, 0, 0, Color.WHITE, null);
+        gfx.dispose();
+        return rgb;
+    }
+}
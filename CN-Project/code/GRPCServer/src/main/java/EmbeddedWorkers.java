@@ -0,0 +1,64 @@
+import com.google.pubsub.v1.PubsubMessage;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs the Detect Objects App in the same JVM as the server, when the environment variable EMBEDDED_WORKER_JAR is
+ * defined with the path of its jar with dependencies. The messages are then handed to the workers through a bounded
+ * in-process queue, instead of the Pub/Sub topic.
+ * Both applications have classes with the same names in the default package, so the Detect Objects App is loaded by
+ * its own class loader, whose parent is the platform class loader, and only JDK types cross between them.
+ * When the server stops, the queue is drained before the JVM exits.
+ */
+public class EmbeddedWorkers {
+    private static final String WORKER_JAR_ENV = "EMBEDDED_WORKER_JAR";
+    private static final String QUEUE_CAPACITY_ENV = "EMBEDDED_QUEUE_CAPACITY";
+    private static final String WORKER_THREADS_ENV = "EMBEDDED_WORKER_THREADS";
+    private static final int DEFAULT_QUEUE_CAPACITY = 100;
+    private static final int DEFAULT_WORKER_THREADS = 1;
+
+    private static BiConsumer<Map<String, String>, ByteBuffer> queue;
+
+    public static boolean isEnabled() {
+        return System.getenv(WORKER_JAR_ENV) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void start() throws Exception {
+        File workerJar = new File(System.getenv(WORKER_JAR_ENV));
+        if (!workerJar.isFile()) throw new IllegalArgumentException("The worker jar '" + workerJar + "' doesn't exist");
+        int queueCapacity = Env.getInt(QUEUE_CAPACITY_ENV, DEFAULT_QUEUE_CAPACITY, 1);
+        int workerThreads = Env.getInt(WORKER_THREADS_ENV, DEFAULT_WORKER_THREADS, 1);
+
+        // The class loader is never closed, as the workers run until the server ends
+        URLClassLoader classLoader = new URLClassLoader(
+                new URL[]{workerJar.toURI().toURL()}, ClassLoader.getPlatformClassLoader()
+        );
+        Method startEmbedded = classLoader.loadClass("DetectObjectsApp").getMethod("startEmbedded", int.class, int.class);
+        queue = (BiConsumer<Map<String, String>, ByteBuffer>) startEmbedded.invoke(null, queueCapacity, workerThreads);
+        System.out.println("\t- Embedded Detect Objects App started with a queue of " + queueCapacity + " messages.");
+        Runtime.getRuntime().addShutdownHook(new Thread(EmbeddedWorkers::stop, "embedded-workers-stop"));
+    }
+
+    private static void stop() {
+        if (!(queue instanceof AutoCloseable)) return;
+        try {
+            ((AutoCloseable) queue).close();
+        } catch (Exception e) {
+            System.out.println("* ERROR * Embedded queue not stopped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits while the queue of the workers is full, so the uploads are held back at the rate the workers process them.
+     */
+    public static void submit(PubsubMessage message) {
+        queue.accept(message.getAttributesMap(), message.getData().asReadOnlyByteBuffer());
+    }
+}
@@ -0,0 +1,406 @@
+import com.google.api.gax.rpc.ApiStreamObserver;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.*;
+import utils.TopScoresHeap;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index of the detected objects, used to answer the searches without querying the Firestore.
+ * For each object name it keeps the detections sorted by their creation timestamp in primitive arrays, so a search
+ * between two dates is a binary search followed by a sequential scan.
+ * It's bootstrapped by reading the detected objects collection once, and kept up to date by a snapshot listener on the
+ * recently created detected objects, which is periodically replaced so the listener doesn't keep every document.
+ * The request ids of the deleted files may remain in the index, so the request documents of the results must be read.
+ * Each request id is kept with an ordinal, referenced by its detections, which is freed, and reused by the next request
+ * indexed, once its last detection is removed.
+ */
+public class ObjectsIndex {
+    private static final long LISTENER_WINDOW_MINUTES = 60;
+    // Margin for the differences between the clocks of the workers that set the creation timestamps
+    private static final long LISTENER_MARGIN_MINUTES = 5;
+
+    private final Firestore db;
+    private final String collection;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, PostingList> postingLists = new HashMap<>(); // Key = Object name
+    private final Map<String, Integer> requestOrdinals = new HashMap<>(); // Key = Request id
+    private final List<String> requestIds = new ArrayList<>(); // Index = Request ordinal, null if it's free
+    private int[] detectionCounts = new int[16]; // Index = Request ordinal, detections of the request in the index
+    private final Deque<Integer> freeOrdinals = new ArrayDeque<>();
+    private final ScheduledExecutorService listenerScheduler = Executors.newSingleThreadScheduledExecutor();
+    private ListenerRegistration listener;
+    private volatile boolean ready;
+
+    private ObjectsIndex(Firestore db, String collection) {
+        this.db = db;
+        this.collection = collection;
+    }
+
+    /**
+     * Creates the index and starts its bootstrap in the background, the index is only used once it's ready.
+     */
+    public static ObjectsIndex start(Firestore db, String collection) {
+        ObjectsIndex index = new ObjectsIndex(db, collection);
+        index.listenerScheduler.execute(index::bootstrap);
+        return index;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    private void bootstrap() {
+        try {
+            long startTime = System.currentTimeMillis();
+            // The listener starts first, so no detected object created during the bootstrap is missed
+            listenToRecentObjects();
+            CompletableFuture<Void> streamCompleted = new CompletableFuture<>();
+            // Read in timestamp order, so the detections are appended to the posting lists instead of inserted
+            db.collection(collection)
+                    .select("objectName", "score", "requestId", "creationTimestamp")
+                    .orderBy("creationTimestamp")
+                    .stream(new ApiStreamObserver<>() {
+                        @Override
+                        public void onNext(DocumentSnapshot doc) {
+                            add(doc);
+                        }
+
+                        @Override
+                        public void onError(Throwable throwable) {
+                            streamCompleted.completeExceptionally(throwable);
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                            streamCompleted.complete(null);
+                        }
+                    });
+            streamCompleted.get();
+            ready = true;
+            listenerScheduler.scheduleAtFixedRate(this::listenToRecentObjects,
+                    LISTENER_WINDOW_MINUTES, LISTENER_WINDOW_MINUTES, TimeUnit.MINUTES);
+            System.out.println("\t- Objects index with " + getEntries() + " detected objects built in " +
+                    (System.currentTimeMillis() - startTime) + " ms.");
+        } catch (Exception e) {
+            System.out.println("* ERROR * Objects index not built, the searches will query the Firestore: " + e);
+            e.printStackTrace();
+            // The index is never used, so it isn't kept up to date either
+            close();
+        }
+    }
+
+    /**
+     * Replaces the current listener by one that only listens to the objects created from a few minutes ago, the
+     * objects that both listeners receive are only indexed once.
+     */
+    private void listenToRecentObjects() {
+        long windowStart = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(LISTENER_MARGIN_MINUTES);
+        Timestamp from = Timestamp.ofTimeMicroseconds(windowStart * 1000);
+        ListenerRegistration previousListener = listener;
+        listener = db.collection(collection)
+                .whereGreaterThanOrEqualTo("creationTimestamp", from)
+                .addSnapshotListener((snapshot, error) -> {
+                    if (error != null) {
+                        System.out.println("* ERROR * Objects index listener: " + error.getMessage());
+                        return;
+                    }
+                    for (DocumentChange change : snapshot.getDocumentChanges()) {
+                        if (change.getType() == DocumentChange.Type.ADDED) add(change.getDocument());
+                        else if (change.getType() == DocumentChange.Type.REMOVED) remove(change.getDocument());
+                    }
+                });
+        if (previousListener != null) previousListener.remove();
+    }
+
+    public void close() {
+        listenerScheduler.shutdownNow();
+        if (listener != null) listener.remove();
+    }
+
+    private void add(DocumentSnapshot doc) {
+        String objectName = doc.getString("objectName");
+        String requestId = doc.getString("requestId");
+        Timestamp timestamp = doc.getTimestamp("creationTimestamp");
+        Double score = doc.getDouble("score");
+        if (objectName == null || requestId == null || timestamp == null || score == null) return;
+
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = requestOrdinals.get(requestId);
+            if (ordinal == null) ordinal = newOrdinal(requestId);
+            boolean added = postingLists.computeIfAbsent(objectName, name -> new PostingList())
+                    .add(toMicros(timestamp), score.floatValue(), ordinal);
+            if (added) detectionCounts[ordinal]++;
+            else if (detectionCounts[ordinal] == 0) freeOrdinal(ordinal);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void remove(DocumentSnapshot doc) {
+        String objectName = doc.getString("objectName");
+        String requestId = doc.getString("requestId");
+        Timestamp timestamp = doc.getTimestamp("creationTimestamp");
+        if (objectName == null || requestId == null || timestamp == null) return;
+
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = requestOrdinals.get(requestId);
+            PostingList postingList = postingLists.get(objectName);
+            if (ordinal != null && postingList != null && postingList.remove(toMicros(timestamp), ordinal)) {
+                removedDetections(ordinal, 1);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the detections of a deleted request, from the posting lists of the object names detected in it.
+     */
+    public void removeRequest(String requestId, Collection<String> objectNames) {
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = requestOrdinals.get(requestId);
+            if (ordinal == null) return;
+            int removed = 0;
+            for (String objectName : objectNames) {
+                PostingList postingList = postingLists.get(objectName);
+                if (postingList != null) removed += postingList.removeAll(ordinal);
+            }
+            removedDetections(ordinal, removed);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Must be called with the write lock.
+     */
+    private int newOrdinal(String requestId) {
+        Integer ordinal = freeOrdinals.poll();
+        if (ordinal == null) {
+            ordinal = requestIds.size();
+            requestIds.add(requestId);
+            if (ordinal == detectionCounts.length) detectionCounts = Arrays.copyOf(detectionCounts, ordinal * 2);
+        } else {
+            requestIds.set(ordinal, requestId);
+        }
+        requestOrdinals.put(requestId, ordinal);
+        return ordinal;
+    }
+
+    /**
+     * Must be called with the write lock.
+     */
+    private void removedDetections(int ordinal, int removed) {
+        detectionCounts[ordinal] -= removed;
+        if (detectionCounts[ordinal] == 0) freeOrdinal(ordinal);
+    }
+
+    private void freeOrdinal(int ordinal) {
+        requestOrdinals.remove(requestIds.get(ordinal));
+        requestIds.set(ordinal, null);
+        freeOrdinals.push(ordinal);
+    }
+
+    /**
+     * @return the ids of the requests, without repetitions, with the object detected between the two timestamps with
+     * a score greater than the minimum score
+     */
+    public List<String> search(String objectName, Timestamp initial, Timestamp last, double minScore) {
+        lock.readLock().lock();
+        try {
+            PostingList postingList = postingLists.get(objectName);
+            if (postingList == null) return Collections.emptyList();
+            Set<Integer> found = new LinkedHashSet<>();
+            int end = postingList.upperBound(toMicros(last));
+            for (int i = postingList.lowerBound(toMicros(initial)); i < end; i++) {
+                if (postingList.scores[i] > minScore) found.add(postingList.ordinals[i]);
+            }
+            List<String> result = new ArrayList<>(found.size());
+            found.forEach(ordinal -> result.add(requestIds.get(ordinal)));
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Offers to the heap every request with the object detected between the two timestamps with a score greater than
+     * the minimum score, the heap keeps the best score of each request.
+     */
+    public void searchTop(String objectName, Timestamp initial, Timestamp last, double minScore, TopScoresHeap topScores) {
+        lock.readLock().lock();
+        try {
+            PostingList postingList = postingLists.get(objectName);
+            if (postingList == null) return;
+            int end = postingList.upperBound(toMicros(last));
+            for (int i = postingList.lowerBound(toMicros(initial)); i < end; i++) {
+                float score = postingList.scores[i];
+                if (score > minScore) topScores.offer(requestIds.get(postingList.ordinals[i]), score);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getEntries() {
+        lock.readLock().lock();
+        try {
+            long entries = 0;
+            for (PostingList postingList : postingLists.values()) entries += postingList.size;
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Estimates the memory used by the index: the capacity of the posting lists arrays plus the request ids and the
+     * map entries used to look them up.
+     */
+    public long getMemoryBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (Map.Entry<String, PostingList> entry : postingLists.entrySet()) {
+                bytes += PostingList.BYTES_PER_ENTRY * entry.getValue().timestamps.length + 3 * 16 + 64;
+                bytes += 40 + 2L * entry.getKey().length();
+            }
+            for (String requestId : requestIds) {
+                if (requestId != null) bytes += 40 + 2L * requestId.length() + 48 + 16;
+            }
+            bytes += 4L * detectionCounts.length + 16L * freeOrdinals.size();
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void writeMetrics(StringBuilder metrics) {
+        lock.readLock().lock();
+        try {
+            MetricsEndpoint.gauge(metrics, "grpcserver_objects_index_ready", ready ? 1 : 0);
+            MetricsEndpoint.gauge(metrics, "grpcserver_objects_index_object_names", postingLists.size());
+            MetricsEndpoint.gauge(metrics, "grpcserver_objects_index_requests", requestOrdinals.size());
+            MetricsEndpoint.gauge(metrics, "grpcserver_objects_index_entries", getEntries());
+            MetricsEndpoint.gauge(metrics, "grpcserver_objects_index_memory_bytes", getMemoryBytes());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static long toMicros(Timestamp timestamp) {
+        return timestamp.getSeconds() * 1_000_000 + timestamp.getNanos() / 1000;
+    }
+
+    /**
+     * Detections of an object name sorted by timestamp, stored as parallel arrays of primitives.
+     */
+    private static class PostingList {
+        private static final int BYTES_PER_ENTRY = Long.BYTES + Float.BYTES + Integer.BYTES;
+        private long[] timestamps = new long[4];
+        private float[] scores = new float[4];
+        private int[] ordinals = new int[4];
+        private int size;
+
+        /**
+         * @return the position of the first detection with a timestamp greater than or equal to the timestamp
+         */
+        private int lowerBound(long timestamp) {
+            int low = 0, high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (timestamps[middle] < timestamp) low = middle + 1;
+                else high = middle;
+            }
+            return low;
+        }
+
+        /**
+         * @return the position of the first detection with a timestamp greater than the timestamp
+         */
+        private int upperBound(long timestamp) {
+            int low = 0, high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (timestamps[middle] <= timestamp) low = middle + 1;
+                else high = middle;
+            }
+            return low;
+        }
+
+        /**
+         * The bootstrap reads the detections in timestamp order and new detections usually have the latest timestamp,
+         * so they're mostly appended at the end of the arrays.
+         * A detection already indexed, with the same timestamp, score and request, isn't added again.
+         * @return if the detection was added
+         */
+        private boolean add(long timestamp, float score, int ordinal) {
+            int position = upperBound(timestamp);
+            for (int i = position - 1; i >= 0 && timestamps[i] == timestamp; i--) {
+                if (ordinals[i] == ordinal && scores[i] == score) return false;
+            }
+            if (size == timestamps.length) {
+                int capacity = size * 2;
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                scores = Arrays.copyOf(scores, capacity);
+                ordinals = Arrays.copyOf(ordinals, capacity);
+            }
+            int moved = size - position;
+            System.arraycopy(timestamps, position, timestamps, position + 1, moved);
+            System.arraycopy(scores, position, scores, position + 1, moved);
+            System.arraycopy(ordinals, position, ordinals, position + 1, moved);
+            timestamps[position] = timestamp;
+            scores[position] = score;
+            ordinals[position] = ordinal;
+            size++;
+            return true;
+        }
+
+        /**
+         * @return if the detection was found and removed
+         */
+        private boolean remove(long timestamp, int ordinal) {
+            for (int i = lowerBound(timestamp); i < size && timestamps[i] == timestamp; i++) {
+                if (ordinals[i] == ordinal) {
+                    removeAt(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the number of detections removed
+         */
+        private int removeAll(int ordinal) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (ordinals[i] == ordinal) continue;
+                timestamps[kept] = timestamps[i];
+                scores[kept] = scores[i];
+                ordinals[kept] = ordinals[i];
+                kept++;
+            }
+            int removed = size - kept;
+            size = kept;
+            return removed;
+        }
+
+        private void removeAt(int position) {
+            int moved = size - position - 1;
+            System.arraycopy(timestamps, position + 1, timestamps, position, moved);
+            System.arraycopy(scores, position + 1, scores, position, moved);
+            System.arraycopy(ordinals, position + 1, ordinals, position, moved);
+            size--;
+        }
+    }
+}
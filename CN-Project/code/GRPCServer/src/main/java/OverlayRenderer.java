@@ -0,0 +1,199 @@
+import com.google.cloud.firestore.Blob;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders the annotated images of the requests processed by the Detect Objects App in the overlay output mode, which
+ * only stores the detected objects in the request document. The annotated image is rendered the first time it's
+ * downloaded and stored like the annotated images rendered by the workers, so the next downloads just read it, and
+ * the images that are never downloaded are never decoded nor encoded.
+ * The objects are read from the fields 'objectsDictionary', with the object names, and 'objectsDetections', with the
+ * name code (2 bytes), score (float), number of vertices (1 byte) and normalized x and y (floats) of each object.
+ * The renders are bounded in memory, as the downloads are served in parallel:
+ * <ul>
+ *     <li>the original image is streamed from the Cloud Storage to the image reader, instead of read whole;</li>
+ *     <li>images with more than OVERLAY_MAX_PIXELS pixels (50 megapixels by default) are decoded, and annotated, with
+ *     a subsampling that fits them in that number of pixels;</li>
+ *     <li>the bytes of the decoded pixels and of the encoded image are reserved from a budget shared by all the
+ *     renders, OVERLAY_BUDGET_MB megabytes (a quarter of the maximum heap by default), and a download that can't
+ *     reserve them in 10 seconds fails as unavailable, see {@link Busy}.</li>
+ * </ul>
+ */
+public class OverlayRenderer {
+    private static final Color COLOR = new Color(0x00ff00);
+    private static final String FONT_NAME = "Arial";
+    private static final int BASE_FONT_SIZE = 18;
+    private static final float BASE_STROKE_WIDTH = 3;
+    private static final int BASE_RESOLUTION = 1000; // Smallest side of the image for which the base sizes are used
+
+    private static final long MAX_PIXELS = Env.getInt("OVERLAY_MAX_PIXELS", 50_000_000, 1);
+    // The images are decoded to at most 4 bytes per pixel
+    private static final int BYTES_PER_PIXEL = 4;
+    // The permits are kilobytes, so the budget fits in an int
+    private static final int DEFAULT_BUDGET_MB = (int) (Runtime.getRuntime().maxMemory() / 4 / 1024 / 1024);
+    private static final int BUDGET_KB = (int) Math.min(
+            (long) Env.getInt("OVERLAY_BUDGET_MB", DEFAULT_BUDGET_MB, 1) * 1024,
+            Integer.MAX_VALUE
+    );
+    private static final long BUDGET_WAIT_SECONDS = 10;
+    private static final Semaphore budget = new Semaphore(BUDGET_KB, true);
+
+    /**
+     * The budget was taken by the other renders for too long, the download can be tried again later.
+     */
+    public static class Busy extends IOException {
+        private Busy(String message) {
+            super(message);
+        }
+    }
+
+    public static boolean hasOverlay(DocumentSnapshot document) {
+        return document.getString("annotatedBlob") == null && document.getBlob("objectsDetections") != null;
+    }
+
+    /**
+     * Renders the annotated image of the request, stores it and records its blob in the request document.
+     * @return the name of the annotated image blob
+     */
+    @SuppressWarnings("unchecked")
+    public static String renderAndStore(Storage storage, DocumentSnapshot document)
+            throws IOException, ExecutionException, InterruptedException {
+        String bucket = document.getString("bucket");
+        String originalBlob = document.getString("originalBlob");
+        com.google.cloud.storage.Blob original = storage.get(BlobId.of(bucket, originalBlob));
+        if (original == null) throw new IOException("Blob '" + originalBlob + "' not found in bucket '" + bucket + "'.");
+
+        String contentType = original.getContentType() != null ? original.getContentType() : "image/jpeg";
+        String formatName = contentType.substring(contentType.indexOf('/') + 1);
+        String annotatedBlob = originalBlob + "-annotated";
+        try (InputStream content = Channels.newInputStream(original.reader());
+             ImageInputStream input = ImageIO.createImageInputStream(content)) {
+            if (input == null) throw new IOException("The blob '" + originalBlob + "' can't be read.");
+            Iterator<ImageReader> imageReaders = ImageIO.getImageReaders(input);
+            if (!imageReaders.hasNext()) {
+                throw new IIOException("Unsupported image format of the blob '" + originalBlob + "'.");
+            }
+
+            ImageReader imageReader = imageReaders.next();
+            BufferedImage img;
+            int reservedKb = 0;
+            try {
+                imageReader.setInput(input, true, true);
+                int width = imageReader.getWidth(0);
+                int height = imageReader.getHeight(0);
+                long pixels = (long) width * height;
+
+                ImageReadParam param = imageReader.getDefaultReadParam();
+                int subsampling = 1;
+                if (pixels > MAX_PIXELS) {
+                    subsampling = (int) Math.ceil(Math.sqrt((double) pixels / MAX_PIXELS));
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    System.out.println("\t- Image with " + width + 'x' + height + " pixels rendered with a " +
+                            "subsampling of " + subsampling + '.');
+                }
+                long decodedPixels = (long) ceilDiv(width, subsampling) * ceilDiv(height, subsampling);
+                // The encoded image is about the size of the original
+                reservedKb = toReservedKb(decodedPixels * BYTES_PER_PIXEL + original.getSize());
+                if (!budget.tryAcquire(reservedKb, BUDGET_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                    reservedKb = 0;
+                    throw new Busy("The server is busy rendering other images, please try again later.");
+                }
+                img = imageReader.read(0, param);
+            } catch (RuntimeException e) {
+                if (reservedKb > 0) budget.release(reservedKb);
+                // The readers fail with unchecked exceptions on some corrupt images
+                throw new IIOException("Corrupt image in the blob '" + originalBlob + "': " + e, e);
+            } catch (IOException | InterruptedException | Error e) {
+                if (reservedKb > 0) budget.release(reservedKb);
+                throw e;
+            } finally {
+                imageReader.dispose();
+            }
+
+            try {
+                List<String> dictionary = (List<String>) document.get("objectsDictionary");
+                Blob detections = document.getBlob("objectsDetections");
+                draw(img, dictionary, detections.toBytes());
+
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                if (!ImageIO.write(img, formatName, encoded)) {
+                    throw new IOException("Unsupported image format '" + formatName + "'.");
+                }
+                BlobInfo blobInfo = BlobInfo.newBuilder(BlobId.of(bucket, annotatedBlob))
+                        .setContentType(contentType)
+                        .build();
+                storage.create(blobInfo, encoded.toByteArray());
+            } finally {
+                budget.release(reservedKb);
+            }
+        }
+        document.getReference().update("annotatedBlob", annotatedBlob).get();
+        System.out.println("\t- Annotated image of the request with id '" + document.getId() + "' rendered and stored.");
+        return annotatedBlob;
+    }
+
+    /**
+     * An image bigger than the whole budget waits for all of it, so it's rendered alone.
+     */
+    private static int toReservedKb(long bytes) {
+        return (int) Math.min(Math.max(bytes / 1024, 1), BUDGET_KB);
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    private static void draw(BufferedImage img, List<String> dictionary, byte[] detections) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        double scale = Math.max(1, (double) Math.min(width, height) / BASE_RESOLUTION);
+        int strokeWidth = (int) Math.round(BASE_STROKE_WIDTH * scale);
+
+        Graphics2D gfx = img.createGraphics();
+        try {
+            gfx.setFont(new Font(FONT_NAME, Font.PLAIN, (int) Math.round(BASE_FONT_SIZE * scale)));
+            gfx.setStroke(new BasicStroke(strokeWidth));
+            gfx.setColor(COLOR);
+
+            ByteBuffer buffer = ByteBuffer.wrap(detections);
+            while (buffer.hasRemaining()) {
+                String name = dictionary.get(buffer.getShort());
+                buffer.getFloat(); // Score
+                int vertexCount = buffer.get() & 0xff;
+                int[] xPoints = new int[vertexCount];
+                int[] yPoints = new int[vertexCount];
+                for (int i = 0; i < vertexCount; i++) {
+                    xPoints[i] = (int) (width * buffer.getFloat());
+                    yPoints[i] = (int) (height * buffer.getFloat());
+                }
+                if (vertexCount == 0) continue;
+
+                // Draw object name and bounding box of object
+                gfx.drawString(name, xPoints[0], yPoints[0] - strokeWidth);
+                gfx.drawPolygon(xPoints, yPoints, vertexCount);
+            }
+        } finally {
+            gfx.dispose();
+        }
+    }
+}
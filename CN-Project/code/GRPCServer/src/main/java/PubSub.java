@@ -7,54 +7,92 @@ import com.google.pubsub.v1.PubsubMessage;
 import com.google.pubsub.v1.Topic;
 import com.google.pubsub.v1.TopicName;
 import grpcserver.ImageMetadata;
+import grpcserver.Priority;
+import tracing.Span;
+import tracing.Tracer;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 
 public class PubSub {
     private static final String TOPIC = "detectionworkers";
+    // The bulk uploads, e.g. backfills, have their own topic, so the workers process the interactive uploads first
+    private static final String BULK_TOPIC = "detectionworkers-bulk";
 
     /**
-     *  Verifies if the topic already exists, if it doesn't, the topic is created.
+     *  Verifies if the topics already exist, if they don't, the topics are created.
      */
     public static void initTopic(String projectId) throws IOException {
         try (TopicAdminClient topicAdmin = TopicAdminClient.create()) {
 
-            // Verify if the topic already exists
+            // Verify if the topics already exist
+            Set<String> existingTopics = new HashSet<>();
             TopicAdminClient.ListTopicsPagedResponse res = topicAdmin.listTopics(ProjectName.of(projectId));
             for (Topic topic : res.iterateAll()) {
                 String[] topicPath = topic.getName().split("/"); // projects/cn2122-t2-g09/topics/detectionworkers
-                if (topicPath[topicPath.length - 1].compareTo(TOPIC) == 0) return;
+                existingTopics.add(topicPath[topicPath.length - 1]);
             }
 
-            // If it doesn't exist, creates the topic
-            System.out.println("\t- Creating topic '" + TOPIC + "'...");
-            TopicName tName = TopicName.ofProjectTopicName("CN2122-T2-G09", TOPIC);
-            topicAdmin.createTopic(tName);
-            System.out.println("\t- Topic '" + TOPIC + "' successfully created in project '" + projectId + "'.");
+            // If they don't exist, creates the topics
+            for (String topicName : List.of(TOPIC, BULK_TOPIC)) {
+                if (existingTopics.contains(topicName)) continue;
+                System.out.println("\t- Creating topic '" + topicName + "'...");
+                topicAdmin.createTopic(TopicName.of(projectId, topicName));
+                System.out.println("\t- Topic '" + topicName + "' successfully created in project '" + projectId + "'.");
+            }
         }
     }
 
-    public static void publishMessage(String projectId, String id, String bucket, String blob, ImageMetadata metaData) {
+    public static void publishMessage(
+            String projectId,
+            String id,
+            String bucket,
+            String blob,
+            String analysisBlob,
+            ByteString inlineContent,
+            ImageMetadata metaData,
+            Span uploadSpan
+    ) {
+        // The message carries this span's context, so the detection of the objects continues the upload trace
+        Span publishSpan = uploadSpan.startChild("publish");
+        boolean bulk = metaData.getPriority() == Priority.BULK;
         try {
-            TopicName topic = TopicName.ofProjectTopicName(projectId, TOPIC);
-            Publisher publisher = Publisher.newBuilder(topic).build();
-
-            ByteString msgData = ByteString.copyFromUtf8(id);
-            PubsubMessage pubsubMessage = PubsubMessage.newBuilder()
+            // Small images are sent in the data of the message, instead of the request id, which is also an attribute
+            ByteString msgData = inlineContent != null ? inlineContent : ByteString.copyFromUtf8(id);
+            PubsubMessage.Builder pubsubMessage = PubsubMessage.newBuilder()
                     .setData(msgData)
+                    .putAttributes("id", id)
                     .putAttributes("bucket", bucket)
                     .putAttributes("blob", blob)
                     .putAttributes("imageName", metaData.getName())
                     .putAttributes("imageType", metaData.getType())
-                    .build();
-            ApiFuture<String> future = publisher.publish(pubsubMessage);
+                    .putAttributes("priority", bulk ? "bulk" : "interactive")
+                    .putAttributes(Tracer.TRACE_PARENT, publishSpan.getTraceParent());
+            // The objects are detected in the downscaled copy of the image, when there's one
+            if (analysisBlob != null) pubsubMessage.putAttributes("analysisBlob", analysisBlob);
+            if (inlineContent != null) pubsubMessage.putAttributes("inline", "true");
+
+            if (EmbeddedWorkers.isEnabled()) {
+                EmbeddedWorkers.submit(pubsubMessage.build());
+                System.out.println("\t- Message enqueued to the embedded Detect Objects App.");
+                return;
+            }
+
+            String topicName = bulk ? BULK_TOPIC : TOPIC;
+            TopicName topic = TopicName.ofProjectTopicName(projectId, topicName);
+            Publisher publisher = Publisher.newBuilder(topic).build();
+            ApiFuture<String> future = publisher.publish(pubsubMessage.build());
             String msgID = future.get();
             publisher.shutdown();
-            System.out.println("\t- Message published in topic '" + TOPIC + "' with id = " + msgID + '.');
+            System.out.println("\t- Message published in topic '" + topicName + "' with id = " + msgID + '.');
         } catch (IOException | ExecutionException | InterruptedException e) {
             System.out.println("* ERROR * " + e);
             e.printStackTrace();
+        } finally {
+            publishSpan.end();
         }
     }
 }
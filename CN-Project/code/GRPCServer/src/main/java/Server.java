@@ -1,4 +1,5 @@
 import com.google.api.core.ApiFuture;
+import com.google.api.gax.rpc.ApiStreamObserver;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.*;
@@ -6,40 +7,52 @@ import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.*;
 import grpcserver.*;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
 import io.grpc.stub.StreamObserver;
 import models.DetectedObject;
+import tracing.TraceContextInterceptor;
+import utils.SingleFlight;
+import utils.TopScoresHeap;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 
 import static models.DetectedObject.getDetectedObjectsAppearances;
 import static utils.OnErrorTemplate.sendInternalError;
+import static utils.OnErrorTemplate.sendInvalidArgumentError;
 import static utils.OnErrorTemplate.sendNotFoundError;
+import static utils.OnErrorTemplate.sendUnavailableError;
 
 public class Server extends ServerGrpc.ServerImplBase {
     private static Storage storage;
     private static String bucket;
     private static Firestore db;
     private static String projectId;
+    private static ObjectsIndex objectsIndex;
     private static final String REQUESTS_COLLECTION = "Requests";
     private static final String DETECTED_OBJECTS_COLLECTION = "DetectedObjects";
+    // Maximum number of files returned by a ranked search, each one is a document read and a response entry
+    private static final int MAX_TOP_FILES = 1000;
+    private static final SingleFlight<String, Optional<ImageObjects>> imageObjectsFlights = new SingleFlight<>();
 
     @Override
     public StreamObserver<ImageUploadDownload> uploadImage(StreamObserver<ImageResponse> responseObserver) {
         System.out.println("Request to upload image received.");
-        return new ServerStreamObserverUpload(responseObserver, storage, projectId);
+        String traceParent = TraceContextInterceptor.TRACE_PARENT.get();
+        return new ServerStreamObserverUpload(responseObserver, storage, db, projectId, traceParent);
     }
 
     @Override
     public void getImageDetectedObjects(ImageIdentifier request, StreamObserver<ImageObjects> responseObserver) {
         try {
             System.out.println("Request to get the objects list of the image with id '" + request.getId() + "' received.");
-            DocumentReference docRef = db.collection(REQUESTS_COLLECTION).document(request.getId());
-            ApiFuture<DocumentSnapshot> future = docRef.get();
-            DocumentSnapshot document = future.get();
+            // Concurrent requests for the same id share the same Firestore read
+            Optional<ImageObjects> imageObjects =
+                    imageObjectsFlights.execute(request.getId(), () -> getImageObjects(request.getId()));
 
-            if (!document.exists()) {
+            if (imageObjects.isEmpty()) {
                 String message = "Request id not found, the image might be processing, please wait a few seconds and" +
                         " make sure you're inserting the right id.";
                 System.out.println("\t* WARNING * Request id '" + request.getId() + "' not found.");
@@ -47,24 +60,7 @@ public class Server extends ServerGrpc.ServerImplBase {
                 return;
             }
 
-            // Gets all the objects detected in the image of the request id inserted
-            Query query = db.collection(DETECTED_OBJECTS_COLLECTION).whereEqualTo("requestId", request.getId());
-            ApiFuture<QuerySnapshot> querySnapshot = query.get();
-            List<QueryDocumentSnapshot> documents = querySnapshot.get().getDocuments();
-
-            String imageName = document.getString("imageName");
-            String imageType = document.getString("imageType");
-
-            List<DetectedObject> detectedObjectsList = new LinkedList<>();
-            documents.forEach(doc -> detectedObjectsList.add(doc.toObject(DetectedObject.class)));
-
-            ImageObjects imageObjects = ImageObjects.newBuilder()
-                    .setId(request.getId())
-                    .setImageName(imageName + '.' + imageType)
-                    .putAllObjectsNames(getDetectedObjectsAppearances(detectedObjectsList))
-                    .build();
-
-            responseObserver.onNext(imageObjects);
+            responseObserver.onNext(imageObjects.get());
             responseObserver.onCompleted();
             System.out.println("\t- Response to get the objects list of the image with id '" + request.getId() + "' sent.");
         } catch (InterruptedException | ExecutionException e) {
@@ -74,10 +70,33 @@ public class Server extends ServerGrpc.ServerImplBase {
         }
     }
 
+    private static Optional<ImageObjects> getImageObjects(String id) throws ExecutionException, InterruptedException {
+        DocumentReference docRef = db.collection(REQUESTS_COLLECTION).document(id);
+        ApiFuture<DocumentSnapshot> future = docRef.get();
+        DocumentSnapshot document = future.get();
+        if (!document.exists()) return Optional.empty();
+
+        String imageName = document.getString("imageName");
+        String imageType = document.getString("imageType");
+
+        return Optional.of(ImageObjects.newBuilder()
+                .setId(id)
+                .setImageName(imageName + '.' + imageType)
+                .putAllObjectsNames(getObjectsNames(document))
+                .build());
+    }
+
     @Override
-    public void downloadAnnotatedImage(ImageIdentifier request, StreamObserver<ImageUploadDownload> responseObserver) {
+    public void downloadAnnotatedImage(ImageIdentifier request, StreamObserver<ImageUploadDownload> downloadObserver) {
+        System.out.println("Request to download annotated image with id '" + request.getId() + "' received.");
+        // Concurrent downloads of the same id share the same Firestore and Cloud Storage reads
+        Optional<SharedDownload> sharedObserver = SharedDownload.leadOrFollow(request.getId(), downloadObserver);
+        if (sharedObserver.isEmpty()) {
+            System.out.println("\t- Shared download of the image with id '" + request.getId() + "' finished.\n");
+            return;
+        }
+        SharedDownload responseObserver = sharedObserver.get();
         try {
-            System.out.println("Request to download annotated image with id '" + request.getId() + "' received.");
             DocumentReference docRef = db.collection(REQUESTS_COLLECTION).document(request.getId());
             ApiFuture<DocumentSnapshot> future = docRef.get();
             DocumentSnapshot document = future.get();
@@ -90,6 +109,14 @@ public class Server extends ServerGrpc.ServerImplBase {
             }
 
             String annotatedBlob = document.getString("annotatedBlob");
+            if ("FAILED".equals(document.getString("status"))) {
+                String message = "The image could not be processed: " + document.getString("error");
+                System.out.println("\t* WARNING * Processing of the image with id '" + request.getId() + "' failed.");
+                sendInvalidArgumentError(responseObserver, message);
+                return;
+            }
+            // The objects of the image were stored without the annotated image, which is rendered once, here
+            if (OverlayRenderer.hasOverlay(document)) annotatedBlob = OverlayRenderer.renderAndStore(storage, document);
             if (annotatedBlob == null) {
                 String message = "Annotated image not found, probably because it was not processed yet." +
                         " Please try again later.";
@@ -112,50 +139,111 @@ public class Server extends ServerGrpc.ServerImplBase {
             responseObserver.onCompleted();
 
             System.out.println("\t- Image '" + annotatedImageName + "' with id '" + request.getId() + "' sent with success.\n");
-        } catch (InterruptedException | ExecutionException | IOException e) {
+        } catch (OverlayRenderer.Busy e) {
+            sendUnavailableError(responseObserver, e.getMessage());
+            System.out.println("\t* WARNING * Annotated image for id '" + request.getId() + "' not rendered: " +
+                    e.getMessage());
+        } catch (InterruptedException | ExecutionException | IOException | RuntimeException e) {
+            // E.g. a Cloud Storage error, which must also end the download for the requests that joined it
             sendInternalError(responseObserver, e.getMessage());
             System.out.println("* ERROR * " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            responseObserver.endIfOpen();
         }
     }
 
     @Override
     public void searchForFiles(SearchProperties request, StreamObserver<FilesResponse> responseObserver) {
         System.out.println("Request to search for files received.");
-        CollectionReference collection = db.collection(DETECTED_OBJECTS_COLLECTION);
-
         Timestamp initial = Timestamp.fromProto(request.getInitialTimestamp());
         Timestamp last = Timestamp.fromProto(request.getLastTimestamp());
 
+        try {
+            List<ImageResponse> responses;
+            if (objectsIndex != null && objectsIndex.isReady()) {
+                List<String> requestIds = objectsIndex.search(request.getObjectName(), initial, last, request.getScore());
+                responses = new LinkedList<>();
+                for (DocumentSnapshot document : getRequestDocuments(requestIds)) {
+                    if (document.exists()) responses.add(toImageResponse(document).build());
+                }
+            } else {
+                responses = searchForFilesInFirestore(request, initial, last);
+            }
+            responseObserver.onNext(FilesResponse.newBuilder().addAllResponses(responses).build());
+            responseObserver.onCompleted();
+            System.out.format("\t- Response with %o files found from the search properties provided.\n", responses.size());
+        } catch (InterruptedException | ExecutionException e) {
+            sendInternalError(responseObserver, "Internal error, please try again later.");
+            System.out.println("* ERROR * " + e);
+            e.printStackTrace();
+        }
+    }
+
+    private static List<ImageResponse> searchForFilesInFirestore(SearchProperties request, Timestamp initial, Timestamp last)
+            throws ExecutionException, InterruptedException {
+        CollectionReference collection = db.collection(DETECTED_OBJECTS_COLLECTION);
         Query query = collection
                 .whereGreaterThanOrEqualTo("creationTimestamp", initial)
                 .whereLessThanOrEqualTo("creationTimestamp", last)
                 .whereEqualTo("objectName", request.getObjectName());
 
         ApiFuture<QuerySnapshot> querySnapshot = query.get();
+        CollectionReference requestsCollection = db.collection(REQUESTS_COLLECTION);
+        List<QueryDocumentSnapshot> documents = querySnapshot.get().getDocuments();
+        List<ImageResponse> responses = new LinkedList<>();
+        // Can be retrieved duplicated files if they have the same object more than once, so the set is used to prevent that.
+        Set<String> filteredFiles = new HashSet<>(); // Key = Request id
+
+        for (QueryDocumentSnapshot doc: documents) {
+            String requestId = doc.getString("requestId");
+            double score = doc.getDouble("score");
+            if (filteredFiles.add(requestId) && score > request.getScore()) {
+                DocumentSnapshot document = requestsCollection.document(requestId).get().get();
+                responses.add(toImageResponse(document).build());
+            }
+        }
+        return responses;
+    }
+
+    @Override
+    public void searchTopFiles(SearchProperties request, StreamObserver<FilesResponse> responseObserver) {
+        System.out.println("Request to search for the top " + request.getLimit() + " files received.");
+        if (request.getLimit() <= 0 || request.getLimit() > MAX_TOP_FILES) {
+            sendInvalidArgumentError(responseObserver,
+                    "The number of files to search must be between 1 and " + MAX_TOP_FILES + '.');
+            return;
+        }
+
+        Timestamp initial = Timestamp.fromProto(request.getInitialTimestamp());
+        Timestamp last = Timestamp.fromProto(request.getLastTimestamp());
+
+        TopScoresHeap topScores = new TopScoresHeap(request.getLimit());
+        CompletableFuture<Void> streamCompleted = new CompletableFuture<>();
+        if (objectsIndex != null && objectsIndex.isReady()) {
+            objectsIndex.searchTop(request.getObjectName(), initial, last, request.getScore(), topScores);
+            streamCompleted.complete(null);
+        } else {
+            streamTopFiles(request, initial, last, topScores, streamCompleted);
+        }
+
         try {
-            CollectionReference requestsCollection = db.collection(REQUESTS_COLLECTION);
-            List<QueryDocumentSnapshot> documents = querySnapshot.get().getDocuments();
+            streamCompleted.get();
+            List<Map.Entry<String, Double>> rankedFiles = topScores.toSortedList();
             List<ImageResponse> responses = new LinkedList<>();
-            // Can be retrieved duplicated files if they have the same object more than once, so the set is used to prevent that.
-            Set<String> filteredFiles = new HashSet<>(); // Key = Request id
-
-            for (QueryDocumentSnapshot doc: documents) {
-                String requestId = doc.getString("requestId");
-                double score = doc.getDouble("score");
-                if (filteredFiles.add(requestId) && score > request.getScore()) {
-                    DocumentSnapshot document = requestsCollection.document(requestId).get().get();
-                    ImageResponse imgResponse = ImageResponse.newBuilder()
-                            .setId(document.getId())
-                            .setName(document.getString("imageName") + '.' + document.getString("imageType"))
-                            .setObjectsFound(document.getLong("detectedObjects").intValue())
-                            .build();
-                    responses.add(imgResponse);
+            if (!rankedFiles.isEmpty()) {
+                List<String> requestIds = new ArrayList<>(rankedFiles.size());
+                rankedFiles.forEach(file -> requestIds.add(file.getKey()));
+                List<DocumentSnapshot> documents = getRequestDocuments(requestIds);
+                for (int i = 0; i < documents.size(); i++) {
+                    DocumentSnapshot document = documents.get(i);
+                    if (!document.exists()) continue;
+                    responses.add(toImageResponse(document).setScore(rankedFiles.get(i).getValue()).build());
                 }
             }
             responseObserver.onNext(FilesResponse.newBuilder().addAllResponses(responses).build());
             responseObserver.onCompleted();
-            System.out.format("\t- Response with %o files found from the search properties provided.\n", responses.size());
+            System.out.println("\t- Response with the top " + responses.size() + " files found from the search properties provided.");
         } catch (InterruptedException | ExecutionException e) {
             sendInternalError(responseObserver, "Internal error, please try again later.");
             System.out.println("* ERROR * " + e);
@@ -163,6 +251,42 @@ public class Server extends ServerGrpc.ServerImplBase {
         }
     }
 
+    private static void streamTopFiles(
+            SearchProperties request,
+            Timestamp initial,
+            Timestamp last,
+            TopScoresHeap topScores,
+            CompletableFuture<Void> streamCompleted
+    ) {
+        // Only the fields needed to rank are fetched, the vertices of each object are not transferred
+        Query query = db.collection(DETECTED_OBJECTS_COLLECTION)
+                .whereGreaterThanOrEqualTo("creationTimestamp", initial)
+                .whereLessThanOrEqualTo("creationTimestamp", last)
+                .whereEqualTo("objectName", request.getObjectName())
+                .select("requestId", "score", "requestMaxScore");
+
+        // The matches are streamed through a heap bounded by the limit, so they are never all kept in memory
+        query.stream(new ApiStreamObserver<>() {
+            @Override
+            public void onNext(DocumentSnapshot doc) {
+                // Documents written before the maximum score existed are ranked by their own score
+                Double maxScore = doc.getDouble("requestMaxScore");
+                double score = maxScore != null ? maxScore : doc.getDouble("score");
+                if (score > request.getScore()) topScores.offer(doc.getString("requestId"), score);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                streamCompleted.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onCompleted() {
+                streamCompleted.complete(null);
+            }
+        });
+    }
+
     @Override
     public void getAllFiles(Pagination pagination, StreamObserver<FilesResponse> responseObserver) {
         try {
@@ -208,26 +332,40 @@ public class Server extends ServerGrpc.ServerImplBase {
                 return;
             }
 
-            // Get image detected objects to be deleted
-            Query query = db.collection(DETECTED_OBJECTS_COLLECTION).whereEqualTo("requestId", request.getId());
-            ApiFuture<QuerySnapshot> querySnapshot = query.get();
-            List<QueryDocumentSnapshot> documents = querySnapshot.get().getDocuments();
-
             // Delete Firestore documents
             WriteBatch firestoreBatch = db.batch();
-            documents.forEach(doc -> {
-                DocumentReference objectsDocRef = db.collection(DETECTED_OBJECTS_COLLECTION).document(doc.getId());
-                firestoreBatch.delete(objectsDocRef);
-            });
+            Set<String> objectNames = new HashSet<>();
+            @SuppressWarnings("unchecked")
+            List<String> dictionary = (List<String>) document.get("objectsDictionary");
+            if (dictionary != null && "compact".equals(document.getString("objectsLayout"))) {
+                // Compact layout, the ids of the documents of each object name are known without a query
+                for (int code = 0; code < dictionary.size(); code++) {
+                    firestoreBatch.delete(db.collection(DETECTED_OBJECTS_COLLECTION).document(request.getId() + "_" + code));
+                }
+                objectNames.addAll(dictionary);
+            } else {
+                // Get image detected objects to be deleted
+                Query query = db.collection(DETECTED_OBJECTS_COLLECTION).whereEqualTo("requestId", request.getId());
+                ApiFuture<QuerySnapshot> querySnapshot = query.get();
+                List<QueryDocumentSnapshot> documents = querySnapshot.get().getDocuments();
+                documents.forEach(doc -> {
+                    firestoreBatch.delete(doc.getReference());
+                    objectNames.add(doc.getString("objectName"));
+                });
+            }
             firestoreBatch.delete(docRef);
             firestoreBatch.commit().get();
+            if (objectsIndex != null) objectsIndex.removeRequest(request.getId(), objectNames);
 
             // Delete Cloud Storage blob images
             String originalBlob = document.getString("originalBlob");
             String annotatedBlob = document.getString("annotatedBlob");
             StorageBatch storageBatch = storage.batch();
             CloudStorage.deleteBlob(bucket, storageBatch, originalBlob);
-            CloudStorage.deleteBlob(bucket, storageBatch, annotatedBlob);
+            // There's no annotated image if the processing of the image failed
+            if (annotatedBlob != null) CloudStorage.deleteBlob(bucket, storageBatch, annotatedBlob);
+            String analysisBlob = document.getString("analysisBlob");
+            if (analysisBlob != null) CloudStorage.deleteBlob(bucket, storageBatch, analysisBlob);
             storageBatch.submit();
 
             String imageName = document.getString("imageName");
@@ -241,6 +379,52 @@ public class Server extends ServerGrpc.ServerImplBase {
         }
     }
 
+    /**
+     * Gets all the request documents in a single round trip, in the same order as the ids.
+     */
+    private static List<DocumentSnapshot> getRequestDocuments(List<String> requestIds)
+            throws ExecutionException, InterruptedException {
+        if (requestIds.isEmpty()) return Collections.emptyList();
+        CollectionReference requestsCollection = db.collection(REQUESTS_COLLECTION);
+        DocumentReference[] docRefs = requestIds.stream()
+                .map(requestsCollection::document)
+                .toArray(DocumentReference[]::new);
+        return db.getAll(docRefs).get();
+    }
+
+    private static ImageResponse.Builder toImageResponse(DocumentSnapshot document) {
+        return ImageResponse.newBuilder()
+                .setId(document.getId())
+                .setName(document.getString("imageName") + '.' + document.getString("imageType"))
+                .setObjectsFound(document.getLong("detectedObjects").intValue());
+    }
+
+    /**
+     * Gets the objects names summary stored in the request document by the detection, or rebuilds it from the
+     * detected objects documents when the request was processed before the summary was stored.
+     * @param document - request document
+     * @return map where the key is the object name and the value the times it was detected
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Integer> getObjectsNames(DocumentSnapshot document)
+            throws ExecutionException, InterruptedException {
+        Map<String, Object> summary = (Map<String, Object>) document.get("objectsNames");
+        if (summary != null) {
+            Map<String, Integer> objectsNames = new HashMap<>();
+            summary.forEach((name, appearances) -> objectsNames.put(name, ((Number) appearances).intValue()));
+            return objectsNames;
+        }
+
+        // Gets all the objects detected in the image of the request id inserted
+        Query query = db.collection(DETECTED_OBJECTS_COLLECTION).whereEqualTo("requestId", document.getId());
+        ApiFuture<QuerySnapshot> querySnapshot = query.get();
+        List<QueryDocumentSnapshot> documents = querySnapshot.get().getDocuments();
+
+        List<DetectedObject> detectedObjectsList = new LinkedList<>();
+        documents.forEach(doc -> detectedObjectsList.add(doc.toObject(DetectedObject.class)));
+        return getDetectedObjectsAppearances(detectedObjectsList);
+    }
+
     private static void initStorage(String[] args) {
         // Get GOOGLE_APPLICATION_CREDENTIALS environment variable
         StorageOptions storageOptions = StorageOptions.getDefaultInstance();
@@ -285,11 +469,16 @@ public class Server extends ServerGrpc.ServerImplBase {
 
             initFirestore();
             initStorage(args);
-            PubSub.initTopic(projectId);
+            // In the embedded mode, the messages are handed to the Detect Objects App without the Pub/Sub topic
+            if (EmbeddedWorkers.isEnabled()) EmbeddedWorkers.start();
+            else PubSub.initTopic(projectId);
+            objectsIndex = ObjectsIndex.start(db, DETECTED_OBJECTS_COLLECTION);
+            MetricsEndpoint.register(objectsIndex::writeMetrics);
+            MetricsEndpoint.start();
 
             io.grpc.Server svc = ServerBuilder
                     .forPort(svcPort)
-                    .addService(new Server())
+                    .addService(ServerInterceptors.intercept(new Server(), new TraceContextInterceptor()))
                     .build();
             svc.start();
             System.out.println("Server started, listening on port " + svcPort + "...\n");
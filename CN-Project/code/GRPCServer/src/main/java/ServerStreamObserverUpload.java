@@ -1,4 +1,6 @@
 import com.google.cloud.WriteChannel;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.SetOptions;
 import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
@@ -9,16 +11,36 @@ import grpcserver.ImageUploadDownload;
 import io.grpc.Status;
 import io.grpc.StatusException;
 import io.grpc.stub.StreamObserver;
+import tracing.Span;
+import tracing.Tracer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class ServerStreamObserverUpload implements StreamObserver<ImageUploadDownload> {
     private static final long MAX_FILE_SIZE = (long) Math.pow(1024, 4) * 5; // 5TiB -> Max size for a file in Cloud Storage
     private static final String BUCKET_NAME = "cn2122tf";
+    // Images up to this size are sent in the Pub/Sub message, whose maximum size, like the one of the images sent to
+    // the Vision API, is 10MB, leaving room for the attributes
+    private static final int MAX_INLINE_MAX_BYTES = 10 * 1024 * 1024 - 64 * 1024;
+    private static final long INLINE_MAX_BYTES =
+            Env.getInt("INLINE_IMAGE_MAX_BYTES", 512 * 1024, 0, MAX_INLINE_MAX_BYTES);
+    private static final String REQUESTS_COLLECTION = "Requests";
+    private static final int STORE_ATTEMPTS = 3;
+    private static final long STORE_RETRY_DELAY_MILLIS = 1000;
+    // Stores the inlined images in the Cloud Storage after their messages are published. When its threads and queue are
+    // full, the upload that completes stores its image itself, so the images waiting to be stored are bounded.
+    private static final ThreadPoolExecutor storageExecutor = new ThreadPoolExecutor(
+            4, 4, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(64), new ThreadPoolExecutor.CallerRunsPolicy()
+    );
     private final String projectId;
 
     private static final Set<String> possibleImageTypes = new HashSet<>(){{
@@ -27,15 +49,27 @@ public class ServerStreamObserverUpload implements StreamObserver<ImageUploadDow
 
     private final StreamObserver<ImageResponse> replyStream;
     private final Storage storage;
-    private static ImageMetadata imageMetadata;
-    private static String requestId;
-    private static String blobName;
-    private static WriteChannel writer;
+    private final Firestore db;
+    private ImageMetadata imageMetadata;
+    private String requestId;
+    private String blobName;
+    private WriteChannel writer;
+    private ByteString.Output inlineContent; // Only used while the image is small enough to be inlined
+    private final Span uploadSpan;
+    private Span storageWriteSpan;
 
-    public ServerStreamObserverUpload(StreamObserver<ImageResponse> replyStream, Storage storage, String projectId) {
+    public ServerStreamObserverUpload(
+            StreamObserver<ImageResponse> replyStream,
+            Storage storage,
+            Firestore db,
+            String projectId,
+            String traceParent
+    ) {
         this.replyStream = replyStream;
         this.storage = storage;
+        this.db = db;
         this.projectId = projectId;
+        this.uploadSpan = Tracer.startSpan("server-upload", traceParent);
     }
 
     @Override
@@ -43,10 +77,15 @@ public class ServerStreamObserverUpload implements StreamObserver<ImageUploadDow
         try {
             if(imageUpload.hasMetadata()) {
                 imageMetadata = imageUpload.getMetadata();
-                if (!isImageTypeSupported(imageMetadata.getType()) && !isImageSizeValid(imageMetadata.getSize())) return;
+                // The size is validated before it's used to allocate the inlined content
+                if (!isImageTypeSupported(imageMetadata.getType()) || !isImageSizeValid(imageMetadata.getSize())) return;
                 requestId = UUID.randomUUID().toString();
                 blobName = requestId + '/' + imageMetadata.getName();
-                writer = createWriteChannel();
+                uploadSpan.setAttribute("requestId", requestId).setAttribute("size", imageMetadata.getSize());
+                if (imageMetadata.getSize() <= INLINE_MAX_BYTES) inlineContent = ByteString.newOutput((int) imageMetadata.getSize());
+                else writer = createWriteChannel();
+            } else if (inlineContent != null) {
+                writeInline(imageUpload.getContent());
             } else {
                 writeOnCloudStorage(imageUpload.getContent());
             }
@@ -61,10 +100,15 @@ public class ServerStreamObserverUpload implements StreamObserver<ImageUploadDow
     @Override
     public void onError(Throwable throwable) {
         System.out.println("* Error * " + throwable.getMessage());
+        uploadSpan.setAttribute("error", throwable.getMessage()).end();
     }
 
     @Override
     public void onCompleted() {
+        if (inlineContent != null) {
+            completeInline();
+            return;
+        }
         closeWriteChannel();
         ImageResponse response = ImageResponse.newBuilder()
                 .setId(requestId)
@@ -73,7 +117,95 @@ public class ServerStreamObserverUpload implements StreamObserver<ImageUploadDow
         System.out.println("\t- Image '" +  imageMetadata.getName() + "' stored with success.");
         replyStream.onNext(response);
         replyStream.onCompleted();
-        PubSub.publishMessage(projectId, requestId, BUCKET_NAME, blobName, imageMetadata);
+        String analysisBlobName = createAnalysisCopy();
+        PubSub.publishMessage(projectId, requestId, BUCKET_NAME, blobName, analysisBlobName, null, imageMetadata, uploadSpan);
+        uploadSpan.end();
+    }
+
+    /**
+     * The image is published in the message before being stored, so the worker doesn't have to wait for the Cloud
+     * Storage nor read the image from it, and the image is stored in the Cloud Storage afterwards.
+     */
+    private void completeInline() {
+        ByteString content = inlineContent.toByteString();
+        ImageResponse response = ImageResponse.newBuilder()
+                .setId(requestId)
+                .setName(imageMetadata.getName())
+                .build();
+        replyStream.onNext(response);
+        replyStream.onCompleted();
+        PubSub.publishMessage(projectId, requestId, BUCKET_NAME, blobName, null, content, imageMetadata, uploadSpan);
+
+        Span storageWriteSpan = uploadSpan.startChild("gcs-write");
+        uploadSpan.end();
+        storageExecutor.execute(() -> {
+            try {
+                storeInlined(content);
+            } finally {
+                storageWriteSpan.end();
+            }
+        });
+    }
+
+    /**
+     * Retries the failed writes a few times, and if the image still isn't stored, marks its request as failed, so its
+     * download reports the error instead of waiting for an image that will never exist.
+     */
+    private void storeInlined(ByteString content) {
+        BlobId blobId = BlobId.of(BUCKET_NAME, blobName);
+        BlobInfo blobInfo = BlobInfo.newBuilder(blobId).setContentType("image/" + imageMetadata.getType()).build();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                storage.create(blobInfo, content.toByteArray());
+                System.out.println("\t- Image '" +  imageMetadata.getName() + "' stored with success.");
+                return;
+            } catch (Exception e) {
+                System.out.println("* ERROR * Image '" + blobName + "' not stored, attempt " + attempt + " of " +
+                        STORE_ATTEMPTS + ": " + e.getMessage());
+                if (attempt == STORE_ATTEMPTS) {
+                    e.printStackTrace();
+                    setRequestFailed("The original image could not be stored: " + e.getMessage());
+                    return;
+                }
+            }
+            try {
+                Thread.sleep(STORE_RETRY_DELAY_MILLIS * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                setRequestFailed("The original image could not be stored.");
+                return;
+            }
+        }
+    }
+
+    private void setRequestFailed(String error) {
+        Map<String, Object> requestMap = new HashMap<>();
+        requestMap.put("id", requestId);
+        requestMap.put("status", "FAILED");
+        requestMap.put("error", error);
+        try {
+            db.collection(REQUESTS_COLLECTION).document(requestId).set(requestMap, SetOptions.merge()).get();
+        } catch (Exception e) {
+            System.out.println("* ERROR * Request '" + requestId + "' not marked as failed: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the name of the blob with the downscaled copy to be analysed, or null if the original should be analysed
+     */
+    private String createAnalysisCopy() {
+        if (!AnalysisCopy.isEnabled()) return null;
+        Span analysisCopySpan = uploadSpan.startChild("analysis-copy");
+        try {
+            return AnalysisCopy.create(storage, BUCKET_NAME, blobName);
+        } catch (IOException e) {
+            System.out.println("* ERROR * Analysis copy of the image '" + blobName + "' not created: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        } finally {
+            analysisCopySpan.end();
+        }
     }
 
     private boolean isImageSizeValid(Long imageSize) {
@@ -98,9 +230,24 @@ public class ServerStreamObserverUpload implements StreamObserver<ImageUploadDow
         String contentType = "image/" + imageMetadata.getType();
         BlobId blobId = BlobId.of(BUCKET_NAME, blobName);
         BlobInfo blobInfo = BlobInfo.newBuilder(blobId).setContentType(contentType).build();
+        storageWriteSpan = uploadSpan.startChild("gcs-write");
         return storage.writer(blobInfo);
     }
 
+    /**
+     * If the content exceeds the size in the metadata and can no longer be inlined, it's written to the Cloud Storage.
+     */
+    private void writeInline(ByteString content) throws IOException {
+        if (inlineContent.size() + content.size() <= INLINE_MAX_BYTES) {
+            content.writeTo(inlineContent);
+            return;
+        }
+        writer = createWriteChannel();
+        writeOnCloudStorage(inlineContent.toByteString());
+        inlineContent = null;
+        writeOnCloudStorage(content);
+    }
+
     private void writeOnCloudStorage(ByteString content) throws IOException {
         byte[] imageContent = content.toByteArray();
         int size = imageContent.length;
@@ -110,6 +257,7 @@ public class ServerStreamObserverUpload implements StreamObserver<ImageUploadDow
     private void closeWriteChannel() {
         try {
             writer.close();
+            storageWriteSpan.end();
         } catch (IOException e) {
             System.out.println("* Error * " + e.getMessage());
             e.printStackTrace();
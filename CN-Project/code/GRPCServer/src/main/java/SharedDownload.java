@@ -0,0 +1,193 @@
+import grpcserver.ImageUploadDownload;
+import io.grpc.Status;
+import io.grpc.StatusException;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent downloads of the same image. The first request (leader) reads the image and every request for
+ * the same id that arrives before the leader sends its first message joins it as a follower, receiving a copy of each
+ * message through a buffer of DOWNLOAD_FOLLOWER_BUFFER_MB megabytes (16 by default), so a follower on a slower link
+ * can fall behind the leader by that many bytes. So a burst of downloads costs a single Firestore and Cloud Storage
+ * read. The messages are never waited for: a follower whose buffer is full is dropped with an error, and a leader whose
+ * own request fails, e.g. cancelled by its client, stops receiving them while the image is still read for the
+ * followers. A leader that returns without ending the download, e.g. after an unexpected error, must call
+ * {@link #endIfOpen()}, so the followers and the next downloads of the id don't wait for it.
+ */
+public class SharedDownload implements StreamObserver<ImageUploadDownload> {
+    private static final long MAX_BUFFERED_BYTES = Env.getInt("DOWNLOAD_FOLLOWER_BUFFER_MB", 16, 1) * 1024L * 1024;
+    private static final long FOLLOWER_TIMEOUT_SECONDS = 10;
+    // Mark the end of the stream, or that the follower was dropped, in the followers buffers, compared by reference
+    private static final ImageUploadDownload END_OF_STREAM = ImageUploadDownload.newBuilder().build();
+    private static final ImageUploadDownload DROPPED = ImageUploadDownload.newBuilder().build();
+
+    private static final ConcurrentHashMap<String, SharedDownload> downloads = new ConcurrentHashMap<>();
+
+    private final String id;
+    private final StreamObserver<ImageUploadDownload> leaderObserver;
+    private final List<Follower> followers = new ArrayList<>();
+    private boolean closed;
+    private volatile boolean ended;
+    private boolean leaderFailed; // Only used by the thread that sends the image
+
+    private SharedDownload(String id, StreamObserver<ImageUploadDownload> leaderObserver) {
+        this.id = id;
+        this.leaderObserver = leaderObserver;
+    }
+
+    /**
+     * If there's no download in progress for the id, returns the observer to which the caller must send the image,
+     * which also sends it to the followers. Otherwise, the caller joins the download in progress as a follower and this
+     * method only returns, with an empty result, once the whole image has been forwarded to the response observer.
+     */
+    public static Optional<SharedDownload> leadOrFollow(
+            String id,
+            StreamObserver<ImageUploadDownload> responseObserver
+    ) {
+        SharedDownload download = new SharedDownload(id, responseObserver);
+        SharedDownload current = downloads.putIfAbsent(id, download);
+        if (current == null) return Optional.of(download);
+
+        Follower follower = current.join();
+        // The download in progress already started sending, so this request downloads the image on its own
+        if (follower == null) return Optional.of(download);
+
+        System.out.println("\t- Download of the image with id '" + id + "' joined a download in progress.");
+        follower.forwardTo(responseObserver);
+        return Optional.empty();
+    }
+
+    private synchronized Follower join() {
+        if (closed) return null;
+        Follower follower = new Follower();
+        followers.add(follower);
+        return follower;
+    }
+
+    /**
+     * After the first message no more followers can join, so the followers list is no longer modified.
+     */
+    private void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        downloads.remove(id, this);
+    }
+
+    @Override
+    public void onNext(ImageUploadDownload message) {
+        close();
+        sendToLeader(() -> leaderObserver.onNext(message));
+        followers.forEach(follower -> follower.offer(message));
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        ended = true;
+        close();
+        sendToLeader(() -> leaderObserver.onError(throwable));
+        followers.forEach(follower -> follower.fail(throwable));
+    }
+
+    @Override
+    public void onCompleted() {
+        ended = true;
+        close();
+        sendToLeader(leaderObserver::onCompleted);
+        followers.forEach(Follower::complete);
+    }
+
+    /**
+     * Fails the download if it wasn't ended by the leader, which also removes it from the downloads in progress.
+     */
+    public void endIfOpen() {
+        if (ended) return;
+        String description = "The download failed unexpectedly, please try again.";
+        onError(new StatusException(Status.INTERNAL.withDescription(description)));
+    }
+
+    /**
+     * The failure of the leader's request only ends that request, the followers still receive the whole image.
+     */
+    private void sendToLeader(Runnable send) {
+        if (leaderFailed) return;
+        try {
+            send.run();
+        } catch (RuntimeException e) {
+            leaderFailed = true;
+            System.out.println("* ERROR * Download of the image with id '" + id + "' failed, " + followers.size() +
+                    " follower(s) still receiving it: " + e.getMessage());
+        }
+    }
+
+    private static class Follower {
+        // Only the image messages are limited, so the end of the stream can always be added
+        private final BlockingQueue<ImageUploadDownload> messages = new LinkedBlockingQueue<>();
+        private final AtomicLong bufferedBytes = new AtomicLong();
+        private volatile Throwable error;
+        // A follower that doesn't consume its buffer in time is dropped, so it doesn't hold back the other requests
+        private volatile boolean dropped;
+
+        private void offer(ImageUploadDownload message) {
+            if (dropped) return;
+            if (bufferedBytes.addAndGet(message.getSerializedSize()) > MAX_BUFFERED_BYTES) {
+                dropped = true;
+                messages.clear();
+                messages.add(DROPPED);
+                return;
+            }
+            messages.add(message);
+        }
+
+        private void fail(Throwable throwable) {
+            error = throwable;
+            end();
+        }
+
+        private void complete() {
+            end();
+        }
+
+        private void end() {
+            if (!dropped) messages.add(END_OF_STREAM);
+        }
+
+        private void forwardTo(StreamObserver<ImageUploadDownload> responseObserver) {
+            try {
+                while (true) {
+                    ImageUploadDownload message = messages.poll(FOLLOWER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    if (message == null || message == DROPPED) {
+                        dropped = true;
+                        String description = "The download was interrupted, please try again.";
+                        responseObserver.onError(new StatusException(Status.UNAVAILABLE.withDescription(description)));
+                        return;
+                    }
+                    if (message == END_OF_STREAM) {
+                        if (error != null) responseObserver.onError(error);
+                        else responseObserver.onCompleted();
+                        return;
+                    }
+                    bufferedBytes.addAndGet(-message.getSerializedSize());
+                    responseObserver.onNext(message);
+                }
+            } catch (InterruptedException e) {
+                dropped = true;
+                Thread.currentThread().interrupt();
+                responseObserver.onError(new StatusException(Status.CANCELLED.withCause(e)));
+            } catch (RuntimeException e) {
+                // The request of the follower failed, e.g. cancelled by its client, so its buffer isn't filled anymore
+                dropped = true;
+                throw e;
+            }
+        }
+    }
+}
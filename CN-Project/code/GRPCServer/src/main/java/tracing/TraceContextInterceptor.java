@@ -0,0 +1,24 @@
+package tracing;
+
+import io.grpc.*;
+
+/**
+ * Makes the 'traceparent' header sent by the client available to the service implementation through the gRPC context.
+ */
+public class TraceContextInterceptor implements ServerInterceptor {
+    public static final Context.Key<String> TRACE_PARENT = Context.key(Tracer.TRACE_PARENT);
+    private static final Metadata.Key<String> TRACE_PARENT_HEADER =
+            Metadata.Key.of(Tracer.TRACE_PARENT, Metadata.ASCII_STRING_MARSHALLER);
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+            ServerCall<ReqT, RespT> call,
+            Metadata headers,
+            ServerCallHandler<ReqT, RespT> next
+    ) {
+        String traceParent = headers.get(TRACE_PARENT_HEADER);
+        if (traceParent == null) return next.startCall(call, headers);
+        Context context = Context.current().withValue(TRACE_PARENT, traceParent);
+        return Contexts.interceptCall(context, call, headers, next);
+    }
+}
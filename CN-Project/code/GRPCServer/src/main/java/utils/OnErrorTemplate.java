@@ -10,6 +10,16 @@ public class OnErrorTemplate {
         streamObserver.onError(th);
     }
 
+    public static <T> void sendInvalidArgumentError(StreamObserver<T> streamObserver, String message) {
+        Throwable th = new StatusException(Status.INVALID_ARGUMENT.withDescription(message));
+        streamObserver.onError(th);
+    }
+
+    public static <T> void sendUnavailableError(StreamObserver<T> streamObserver, String message) {
+        Throwable th = new StatusException(Status.UNAVAILABLE.withDescription(message));
+        streamObserver.onError(th);
+    }
+
     public static <T> void sendInternalError(StreamObserver<T> streamObserver, String message) {
         Throwable th = new StatusException(Status.INTERNAL.withDescription(message));
         streamObserver.onError(th);
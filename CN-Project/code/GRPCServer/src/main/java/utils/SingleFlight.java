@@ -0,0 +1,31 @@
+package utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalesces concurrent calls with the same key, so while a fetch for a key is in flight, every other caller with that
+ * key waits for its result instead of starting a new fetch. The result is not cached after the fetch completes.
+ * @param <K> - type of the key that identifies the fetch
+ * @param <V> - type of the fetched value
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    public V execute(K key, Callable<V> fetch) throws ExecutionException, InterruptedException {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> current = inFlight.putIfAbsent(key, future);
+        if (current != null) return current.get();
+
+        try {
+            future.complete(fetch.call());
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        } finally {
+            inFlight.remove(key, future);
+        }
+        return future.get();
+    }
+}
@@ -0,0 +1,45 @@
+package utils;
+
+import java.util.*;
+
+/**
+ * Keeps the 'k' request ids with the highest scores seen so far, using a min-heap of size 'k', so the memory used by
+ * a ranked search does not depend on how many detections match it.
+ * A request id offered more than once only counts with its highest score.
+ */
+public class TopScoresHeap {
+    private final int k;
+    private final PriorityQueue<Map.Entry<String, Double>> heap;
+    private final Map<String, Map.Entry<String, Double>> entries; // Key = Request id, only the ones inside the heap
+
+    public TopScoresHeap(int k) {
+        this.k = k;
+        // Not sized to 'k', which is usually larger than the matches, so the collections only grow with them
+        this.heap = new PriorityQueue<>(Map.Entry.comparingByValue());
+        this.entries = new HashMap<>();
+    }
+
+    public void offer(String requestId, double score) {
+        Map.Entry<String, Double> current = entries.get(requestId);
+        if (current != null) {
+            if (score <= current.getValue()) return;
+            heap.remove(current);
+        } else if (heap.size() == k) {
+            // Since the minimum only grows, an evicted request can never come back with the same score
+            if (score <= heap.peek().getValue()) return;
+            entries.remove(heap.poll().getKey());
+        }
+        Map.Entry<String, Double> entry = new AbstractMap.SimpleImmutableEntry<>(requestId, score);
+        entries.put(requestId, entry);
+        heap.add(entry);
+    }
+
+    /**
+     * @return the request ids and their scores ordered from the highest score to the lowest
+     */
+    public List<Map.Entry<String, Double>> toSortedList() {
+        List<Map.Entry<String, Double>> sorted = new ArrayList<>(heap);
+        sorted.sort(Map.Entry.<String, Double>comparingByValue().reversed());
+        return sorted;
+    }
+}
@@ -1,3 +1,7 @@
 #! /bin/bash
 export GOOGLE_APPLICATION_CREDENTIALS=/var/server/detect-objects-app-service-acc.json
-java -jar /var/server/DetectObjectsApp-1.0-jar-with-dependencies.jar > /tmp/log.txt
\ No newline at end of file
+# The AppCDS archive, created by 'mvn -Pcds package', is only valid for the relative path of the jar it was created with
+cd /var/server
+CDS_OPTIONS=""
+if [ -f DetectObjectsApp.jsa ]; then CDS_OPTIONS="-XX:SharedArchiveFile=DetectObjectsApp.jsa -Xshare:auto"; fi
+exec java $CDS_OPTIONS -jar DetectObjectsApp-1.0-jar-with-dependencies.jar > /tmp/log.txt